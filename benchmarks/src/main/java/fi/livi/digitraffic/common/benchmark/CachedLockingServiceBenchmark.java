@@ -0,0 +1,77 @@
+package fi.livi.digitraffic.common.benchmark;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.livi.digitraffic.common.dao.InMemoryLockingDao;
+import fi.livi.digitraffic.common.service.locking.CachedLockingService;
+import fi.livi.digitraffic.common.service.locking.LockingService;
+
+/**
+ * Throughput of {@link CachedLockingService#hasLock()} when called from 1 to 64 threads at the same time.
+ * Locks are renewed in the background once a second like in the application.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CachedLockingServiceBenchmark {
+    private ScheduledExecutorService renewer;
+    private CachedLockingService service;
+
+    @Setup
+    public void setup() {
+        final LockingService lockingService = new LockingService(new InMemoryLockingDao(), null);
+        service = lockingService.createCachedLockingServiceObject("benchmark");
+        service.activate();
+
+        renewer = Executors.newSingleThreadScheduledExecutor();
+        renewer.scheduleAtFixedRate(lockingService::renewLocks, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        renewer.shutdownNow();
+        service.destroy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean hasLock1Thread() {
+        return service.hasLock();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean hasLock4Threads() {
+        return service.hasLock();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean hasLock16Threads() {
+        return service.hasLock();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean hasLock64Threads() {
+        return service.hasLock();
+    }
+}
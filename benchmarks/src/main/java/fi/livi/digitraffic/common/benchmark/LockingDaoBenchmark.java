@@ -0,0 +1,124 @@
+package fi.livi.digitraffic.common.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.testcontainers.postgresql.PostgreSQLContainer;
+
+import fi.livi.digitraffic.common.dao.InMemoryLockingDao;
+import fi.livi.digitraffic.common.dao.LockLease;
+import fi.livi.digitraffic.common.dao.LockingDao;
+import fi.livi.digitraffic.common.dao.PostgresLockingDao;
+
+/**
+ * Cost of renewing the locks of an instance, one call per lock compared to one batched call for all locks.
+ * <p>
+ * By default this runs offline against {@link InMemoryLockingDao}, which shows the cost of the calls without the db.
+ * With {@code -p backend=table} it runs against {@link PostgresLockingDao}, where every call is a round trip to the db.
+ * Postgres is started with Testcontainers, which needs Docker, or an existing db can be given with
+ * -Dbenchmark.jdbcUrl, -Dbenchmark.username and -Dbenchmark.password. The locking_table is created if it doesn't exist.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LockingDaoBenchmark {
+    private static final String INSTANCE_ID = "benchmark";
+    private static final int EXPIRATION_SECONDS = 3;
+    private static final String CREATE_LOCKING_TABLE = """
+        CREATE TABLE IF NOT EXISTS locking_table
+        (
+          lock_name    TEXT NOT NULL PRIMARY KEY,
+          lock_locked  TIMESTAMP(3) WITH TIME ZONE,
+          lock_expires TIMESTAMP(3) WITH TIME ZONE,
+          instance_id  TEXT NOT NULL
+        )""";
+
+    @Param({ InMemoryLockingDao.BACKEND })
+    public String backend;
+
+    @Param({ "1", "10", "100" })
+    public int lockCount;
+
+    /** Null unless Postgres is started by the benchmark */
+    private PostgreSQLContainer postgres;
+    /** Null with the in-memory backend */
+    private SingleConnectionDataSource dataSource;
+    private LockingDao lockingDao;
+    private Map<String, Integer> expirationSecondsByLockName;
+
+    @Setup
+    public void setup() {
+        lockingDao = createLockingDao();
+        expirationSecondsByLockName = new LinkedHashMap<>();
+        for (int i = 0; i < lockCount; i++) {
+            expirationSecondsByLockName.put("lock" + i, EXPIRATION_SECONDS);
+        }
+    }
+
+    @Benchmark
+    public void acquireLockOneByOne(final Blackhole blackhole) {
+        for (final String lockName : expirationSecondsByLockName.keySet()) {
+            final Optional<LockLease> lease = lockingDao.tryAcquireLock(lockName, INSTANCE_ID, EXPIRATION_SECONDS);
+            blackhole.consume(lease);
+        }
+    }
+
+    @Benchmark
+    public Map<String, LockLease> acquireLocksBatched() {
+        return lockingDao.acquireLocks(expirationSecondsByLockName, INSTANCE_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (dataSource != null) {
+            dataSource.destroy();
+        }
+        if (postgres != null) {
+            postgres.stop();
+        }
+    }
+
+    private LockingDao createLockingDao() {
+        return switch (backend) {
+            case InMemoryLockingDao.BACKEND -> new InMemoryLockingDao();
+            case PostgresLockingDao.BACKEND -> {
+                dataSource = createDataSource();
+                final NamedParameterJdbcTemplate jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+                jdbcTemplate.getJdbcTemplate().execute(CREATE_LOCKING_TABLE);
+                yield new PostgresLockingDao(jdbcTemplate);
+            }
+            default -> throw new IllegalArgumentException("Unknown backend " + backend);
+        };
+    }
+
+    private SingleConnectionDataSource createDataSource() {
+        final String jdbcUrl = System.getProperty("benchmark.jdbcUrl");
+        if (jdbcUrl != null) {
+            return new SingleConnectionDataSource(jdbcUrl, System.getProperty("benchmark.username"),
+                    System.getProperty("benchmark.password"), true);
+        }
+        postgres = new PostgreSQLContainer("postgres:17-alpine");
+        postgres.start();
+        return new SingleConnectionDataSource(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword(), true);
+    }
+}
@@ -0,0 +1,68 @@
+package fi.livi.digitraffic.common.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.stereotype.Service;
+
+import fi.livi.digitraffic.common.aop.PerformanceMonitorAspect;
+
+/**
+ * Overhead of {@link PerformanceMonitorAspect} on a fast service method. Compares a direct call, a call through
+ * a proxy without advice and a call through a proxy advised by the aspect, so the overhead of the aspect itself is
+ * the difference of the last two.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PerformanceMonitorAspectBenchmark {
+    private BenchmarkService direct;
+    private BenchmarkService proxied;
+    private BenchmarkService monitored;
+
+    @Setup
+    public void setup() {
+        direct = new BenchmarkService();
+
+        proxied = new AspectJProxyFactory(new BenchmarkService()).getProxy();
+
+        final AspectJProxyFactory monitoredFactory = new AspectJProxyFactory(new BenchmarkService());
+        monitoredFactory.addAspect(new PerformanceMonitorAspect());
+        monitored = monitoredFactory.getProxy();
+    }
+
+    @Benchmark
+    public int direct() {
+        return direct.getValue(1);
+    }
+
+    @Benchmark
+    public int proxiedWithoutAdvice() {
+        return proxied.getValue(1);
+    }
+
+    @Benchmark
+    public int monitored() {
+        return monitored.getValue(1);
+    }
+
+    @Service
+    public static class BenchmarkService {
+        public int getValue(final int value) {
+            return value + 1;
+        }
+    }
+}
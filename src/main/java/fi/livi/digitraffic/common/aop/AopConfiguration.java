@@ -1,19 +1,30 @@
 package fi.livi.digitraffic.common.aop;
 
 import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 @Configuration
 @EnableAspectJAutoProxy(proxyTargetClass = true)
 @Aspect
 public class AopConfiguration {
 
+    /**
+     * Timers of monitored methods are recorded when dt.performance-monitor.metrics.enabled is true and there is
+     * a MeterRegistry. dt.performance-monitor.metrics.max-methods limits the count of timed methods.
+     */
     @Bean
-    public PerformanceMonitorAspect performanceMonitorAspect() {
-        return new PerformanceMonitorAspect();
+    public PerformanceMonitorAspect performanceMonitorAspect(
+            @Value("${dt.performance-monitor.metrics.enabled:false}") final boolean metricsEnabled,
+            @Value("${dt.performance-monitor.metrics.max-methods:500}") final int maxTimedMethods,
+            final ObjectProvider<MeterRegistry> meterRegistry) {
+        final MeterRegistry registry = metricsEnabled ? meterRegistry.getIfAvailable() : null;
+        return registry != null ? new PerformanceMonitorAspect(registry, maxTimedMethods) : new PerformanceMonitorAspect();
     }
 
     @Bean
@@ -1,10 +1,19 @@
 package fi.livi.digitraffic.common.aop;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.time.StopWatch;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -15,6 +24,8 @@ import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 
 import fi.livi.digitraffic.common.annotation.PerformanceMonitor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 @Aspect
 @Order(Ordered.HIGHEST_PRECEDENCE)
@@ -25,6 +36,44 @@ public class PerformanceMonitorAspect {
     public static final int DEFAULT_WARNING_LIMIT = 5000;
     public static final int DEFAULT_INFO_LIMIT = 1000;
 
+    public static final String METRIC_NAME = "performance.monitor";
+    public static final String TAG_CLASS = "class";
+    public static final String TAG_METHOD = "method";
+
+    /** Maximum length of a logged message */
+    public static final int MAX_MESSAGE_LENGTH = 1000;
+
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    /** Maximum count of rendered elements of arrays and collections */
+    private static final int MAX_ELEMENTS = 5;
+
+    /** Resolved settings by monitored method, so annotation is read only once per method */
+    private final ConcurrentMap<Method, MonitoredMethod> monitoredMethods = new ConcurrentHashMap<>();
+
+    /** Null if timers are not enabled */
+    private final MeterRegistry meterRegistry;
+    private final int maxTimedMethods;
+    private final AtomicInteger timedMethodCount = new AtomicInteger();
+
+    /**
+     * Monitor that only logs slow calls.
+     */
+    public PerformanceMonitorAspect() {
+        this(null, 0);
+    }
+
+    /**
+     * Monitor that also records the execution time of every call to a Timer per Class.method, tagged with
+     * {@value #TAG_CLASS} and {@value #TAG_METHOD}. Timers publish percentile histograms, and the limits of the method
+     * are used as SLO buckets. To bound the count of meters, only the first maxTimedMethods methods get a timer.
+     * @param meterRegistry   Registry for the timers
+     * @param maxTimedMethods Maximum count of methods to record timers for
+     */
+    public PerformanceMonitorAspect(final MeterRegistry meterRegistry, final int maxTimedMethods) {
+        this.meterRegistry = meterRegistry;
+        this.maxTimedMethods = maxTimedMethods;
+    }
+
      /**
      * By default, every method in class with @Service annotation is monitored.
      * In addition, any method can be monitored with @PerformanceMonitor annotation.
@@ -38,41 +87,103 @@ public class PerformanceMonitorAspect {
     @Around("within(@org.springframework.stereotype.Service *) || @annotation(fi.livi.digitraffic.common.annotation.PerformanceMonitor)")
     public Object monitor(final ProceedingJoinPoint pjp) throws Throwable {
 
-        final MethodSignature methodSignature = (MethodSignature) pjp.getSignature();
-
-        final StopWatch stopWatch = StopWatch.createStarted();
-
         if (log.isDebugEnabled()) {
+            final MethodSignature methodSignature = (MethodSignature) pjp.getSignature();
             log.debug("monitor {}#{}", methodSignature.getDeclaringType().getName(), methodSignature.getName());
         }
 
+        final long startNanos = System.nanoTime();
         try {
             return pjp.proceed();
         } finally {
-            stopWatch.stop();
-            monitor(pjp, methodSignature, stopWatch.getDuration().toMillis());
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            // Fast path: limits are whole millis and never negative, so calls under a millisecond are never logged
+            if (meterRegistry != null || elapsedNanos >= NANOS_PER_MILLI) {
+                // Monitoring must never replace the result or the exception of the monitored call
+                try {
+                    monitor(pjp, elapsedNanos);
+                } catch (final RuntimeException e) {
+                    log.warn("method=monitor Failed to monitor {}", pjp.getSignature(), e);
+                }
+            }
+        }
+    }
+
+    private void monitor(final ProceedingJoinPoint pjp, final long elapsedNanos) {
+        final MonitoredMethod monitoredMethod = getMonitoredMethod((MethodSignature) pjp.getSignature());
+        if (monitoredMethod.timer() != null) {
+            monitoredMethod.timer().record(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        final long executionTime = elapsedNanos / NANOS_PER_MILLI;
+
+        // Only calls over the smallest limit of the method need the message
+        if (monitoredMethod.monitor() && executionTime > monitoredMethod.minimumLimit()) {
+            if (executionTime > monitoredMethod.errorLimit() && log.isErrorEnabled()) {
+                log.error(buildMessage(monitoredMethod.methodWithClass(), pjp.getArgs(), executionTime));
+            } else if (executionTime > monitoredMethod.warningLimit() && log.isWarnEnabled()) {
+                log.warn(buildMessage(monitoredMethod.methodWithClass(), pjp.getArgs(), executionTime));
+            } else if (executionTime > monitoredMethod.infoLimit() && log.isInfoEnabled()) {
+                log.info(buildMessage(monitoredMethod.methodWithClass(), pjp.getArgs(), executionTime));
+            }
         }
     }
 
-    private void monitor(final ProceedingJoinPoint pjp, final MethodSignature methodSignature, final long executionTime) {
+    /**
+     * Spring AOP creates a new join point for every call, also its static part, so resolved settings are cached
+     * by the method instead.
+     */
+    private MonitoredMethod getMonitoredMethod(final MethodSignature methodSignature) {
         final Method method = methodSignature.getMethod();
-        final PerformanceMonitor monitorAnnotation = method.getAnnotation(PerformanceMonitor.class);
+        final MonitoredMethod cached = monitoredMethods.get(method);
+        return cached != null ? cached : monitoredMethods.computeIfAbsent(method, m -> resolveMonitoredMethod(methodSignature));
+    }
+
+    private MonitoredMethod resolveMonitoredMethod(final MethodSignature methodSignature) {
+        final PerformanceMonitor monitorAnnotation = methodSignature.getMethod().getAnnotation(PerformanceMonitor.class);
         final boolean monitor = getMonitor(monitorAnnotation);
+        // Negative limits would log every call, even the ones skipped by the fast path
+        final int errorLimit = Math.max(0, getErrorLimit(monitorAnnotation));
+        final int warningLimit = Math.max(0, getWarningLimit(monitorAnnotation));
+        final int infoLimit = Math.max(0, getInfoLimit(monitorAnnotation));
 
-        if (monitor) {
-            final int errorLimit = getErrorLimit(monitorAnnotation);
-            final int warningLimit = getWarningLimit(monitorAnnotation);
-            final int infoLimit = getInfoLimit(monitorAnnotation);
-            final Object[] args = pjp.getArgs();
-            final String methodWithClass = getMethodWithClass(methodSignature);
-
-            if (executionTime > errorLimit && log.isErrorEnabled()) {
-                log.error(buildMessage(methodWithClass, args, executionTime));
-            } else if (executionTime > warningLimit && log.isWarnEnabled()) {
-                log.warn(buildMessage(methodWithClass, args, executionTime));
-            } else if (executionTime > infoLimit && log.isInfoEnabled()) {
-                log.info(buildMessage(methodWithClass, args, executionTime));
+        return new MonitoredMethod(monitor, errorLimit, warningLimit, infoLimit, getMethodWithClass(methodSignature),
+            monitor ? createTimer(methodSignature, errorLimit, warningLimit, infoLimit) : null);
+    }
+
+    private Timer createTimer(final MethodSignature methodSignature, final int errorLimit, final int warningLimit,
+                              final int infoLimit) {
+        if (meterRegistry == null) {
+            return null;
+        }
+        final int timedCount = timedMethodCount.incrementAndGet();
+        if (timedCount > maxTimedMethods) {
+            if (timedCount == maxTimedMethods + 1) {
+                log.warn("method=createTimer Maximum count of timed methods {} reached, {} and later methods are not timed",
+                    maxTimedMethods, getMethodWithClass(methodSignature));
             }
+            return null;
+        }
+
+        // Micrometer rejects SLOs that are not positive
+        final Duration[] serviceLevelObjectives = IntStream.of(infoLimit, warningLimit, errorLimit)
+            .filter(limit -> limit > 0)
+            .distinct()
+            .sorted()
+            .mapToObj(Duration::ofMillis)
+            .toArray(Duration[]::new);
+        try {
+            return Timer.builder(METRIC_NAME)
+                .tag(TAG_CLASS, methodSignature.getDeclaringType().getSimpleName())
+                .tag(TAG_METHOD, methodSignature.getName())
+                .description("Execution time of monitored method")
+                .publishPercentileHistogram()
+                .serviceLevelObjectives(serviceLevelObjectives)
+                .register(meterRegistry);
+        } catch (final RuntimeException e) {
+            // Method is still monitored by logging, and failure is not retried as the result is cached
+            log.warn("method=createTimer Failed to create timer for {}", getMethodWithClass(methodSignature), e);
+            return null;
         }
     }
 
@@ -105,45 +216,94 @@ public class PerformanceMonitorAspect {
 
         if (args != null && args.length > 0) {
             builder.append(" arguments=");
-            buildValueToString(builder, args);
+            buildValueToString(builder, args, MAX_MESSAGE_LENGTH);
         }
 
-        return StringUtils.truncate(builder.toString(), 1000);
+        return StringUtils.truncate(builder.toString(), MAX_MESSAGE_LENGTH);
     }
 
     public static void buildValueToString(final StringBuilder builder, final Object value) {
-        if (value == null) {
-            builder.append("null");
+        buildValueToString(builder, value, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Appends value to the builder, but stops when the builder reaches maxLength. Only the first 5 elements of arrays
+     * and collections are rendered, and they are iterated without copying, so rendering huge arguments is cheap.
+     * The result might exceed maxLength by a few closing characters, so truncate it if the limit is strict.
+     * @param builder   Builder to append to
+     * @param value     Value to render
+     * @param maxLength Length of the builder after which nothing more is appended
+     */
+    public static void buildValueToString(final StringBuilder builder, final Object value, final int maxLength) {
+        if (builder.length() >= maxLength) {
             return;
         }
 
-        if (value.getClass().isArray()) {
-            try {
-                final Object[] objects = (Object[]) value;
-                buildArrayToString(builder, objects);
-            } catch (final ClassCastException e) {
-                log.debug("buildArrayToString error", e);
-                builder.append("[").append(value.toString().replace(' ', '_')).append("]");
+        switch (value) {
+            case null -> builder.append("null");
+            case final Object[] objects -> buildIteratorToString(builder, Arrays.asList(objects).iterator(), maxLength);
+            case final Collection<?> values -> buildIteratorToString(builder, values.iterator(), maxLength);
+            case final Map<?, ?> map -> buildIteratorToString(builder, map.entrySet().iterator(), maxLength);
+            case final Map.Entry<?, ?> entry -> {
+                buildValueToString(builder, entry.getKey(), maxLength);
+                builder.append("=");
+                buildValueToString(builder, entry.getValue(), maxLength);
+            }
+            default -> {
+                if (value.getClass().isArray()) {
+                    buildPrimitiveArrayToString(builder, value, maxLength);
+                } else {
+                    final String string = String.valueOf(value);
+                    builder.append(string, 0, Math.min(string.length(), maxLength - builder.length()));
+                }
+            }
+        }
+    }
+
+    private static void buildIteratorToString(final StringBuilder builder, final Iterator<?> iterator, final int maxLength) {
+        builder.append("[");
+        for (int index = 0;
+             index < MAX_ELEMENTS && iterator.hasNext() && builder.length() < maxLength;
+             index++) {
+            if(index > 0) {
+                builder.append(";");
             }
-        } else if (value instanceof final Collection<?> values) {
-            final Object[] objects = values.toArray(new Object[0]);
-            buildArrayToString(builder, objects);
-        } else {
-            builder.append(value);
+            buildValueToString(builder, iterator.next(), maxLength);
         }
+        builder.append("]");
     }
 
-    private static void buildArrayToString(final StringBuilder builder, final Object[] objects) {
+    private static void buildPrimitiveArrayToString(final StringBuilder builder, final Object array, final int maxLength) {
+        final int length = Array.getLength(array);
         builder.append("[");
         for (int index = 0;
-             index < objects.length && index < 5;
+             index < MAX_ELEMENTS && index < length && builder.length() < maxLength;
              index++) {
             if(index > 0) {
                 builder.append(";");
             }
-            buildValueToString(builder, objects[index]);
+            switch (array) {
+                case final int[] values -> builder.append(values[index]);
+                case final long[] values -> builder.append(values[index]);
+                case final double[] values -> builder.append(values[index]);
+                case final float[] values -> builder.append(values[index]);
+                case final boolean[] values -> builder.append(values[index]);
+                case final char[] values -> builder.append(values[index]);
+                case final short[] values -> builder.append(values[index]);
+                case final byte[] values -> builder.append(values[index]);
+                default -> throw new IllegalArgumentException("Not a primitive array " + array.getClass());
+            }
         }
         builder.append("]");
     }
 
+    /**
+     * @param timer Null if the method is not timed
+     */
+    private record MonitoredMethod(boolean monitor, int errorLimit, int warningLimit, int infoLimit, String methodWithClass,
+                                   Timer timer) {
+        int minimumLimit() {
+            return Math.min(errorLimit, Math.min(warningLimit, infoLimit));
+        }
+    }
 }
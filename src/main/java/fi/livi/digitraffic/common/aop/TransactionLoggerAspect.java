@@ -1,10 +1,16 @@
 package fi.livi.digitraffic.common.aop;
 
-import java.util.Map;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.time.StopWatch;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -20,11 +26,21 @@ import fi.livi.digitraffic.common.util.StringUtil;
 public class TransactionLoggerAspect {
     private static final Logger log = LoggerFactory.getLogger("TransactionLogger");
 
-    private final int limit;
+    /** Dead platform threads are removed from the registry after this many new threads */
+    private static final int PRUNE_INTERVAL = 1024;
 
-    private final AtomicLong idCounter = new AtomicLong();
+    private final int limit;
 
-    private static final Map<Long, TransactionDetails> activeTransactions = new ConcurrentHashMap<>();
+    /**
+     * Transactions of every platform thread that has run one. Each thread writes only to its own slot, so running a
+     * transaction doesn't contend with other threads, and the slots are only read by logActiveTransactions.
+     * Platform threads are pooled, so the slots are reused. Virtual threads are usually created per task, so they are
+     * registered only while running a transaction, and the set stays bounded by the count of active transactions.
+     */
+    private static final Set<ThreadTransactions> threadTransactions = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger registrationCounter = new AtomicInteger();
+    private static final ThreadLocal<ThreadTransactions> currentThreadTransactions =
+        ThreadLocal.withInitial(TransactionLoggerAspect::createCurrentThreadTransactions);
 
     public TransactionLoggerAspect(final int limit) {
         this.limit = limit;
@@ -32,22 +48,29 @@ public class TransactionLoggerAspect {
 
     @Around("@annotation(org.springframework.transaction.annotation.Transactional)")
     public Object monitor(final ProceedingJoinPoint pjp) throws Throwable {
-        final StopWatch stopWatch = StopWatch.createStarted();
+        final long startNanos = System.nanoTime();
         final MethodSignature methodSignature = (MethodSignature) pjp.getSignature();
         final String className = methodSignature.getDeclaringType().getSimpleName();
         final String methodName = methodSignature.getName();
         final String methodKey = className + "." + methodName;
         final Object[] args = pjp.getArgs();
-        final Long transactionId = idCounter.incrementAndGet();
+        final ThreadTransactions transactions = currentThreadTransactions.get();
+        final boolean registerWhileActive = transactions.isVirtual() && transactions.isEmpty();
 
         try {
-            activeTransactions.put(transactionId, new TransactionDetails(methodKey, args, System.currentTimeMillis()));
+            if (registerWhileActive) {
+                threadTransactions.add(transactions);
+            }
+            transactions.push(methodKey, args, startNanos);
 
             return pjp.proceed();
         } finally {
-            final long tookMs = stopWatch.getDuration().toMillis();
+            final long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
 
-            activeTransactions.remove(transactionId);
+            transactions.pop();
+            if (registerWhileActive) {
+                threadTransactions.remove(transactions);
+            }
 
             if (tookMs > limit) {
                 final String arguments = argumentsToString(args);
@@ -57,23 +80,120 @@ public class TransactionLoggerAspect {
     }
 
     public static void logActiveTransactions(final Logger logger) {
-        Map.copyOf(activeTransactions)
-            .forEach((key, value) -> logger.info("method=logActiveTransactions Active transaction {}",
-                value.getLogString()));
+        threadTransactions.removeIf(ThreadTransactions::isDead);
+        threadTransactions.stream()
+            .flatMap(transactions -> transactions.snapshot().stream())
+            .forEach(details -> logger.info("method=logActiveTransactions Active transaction {}",
+                details.getLogString()));
+    }
+
+    /**
+     * Only for tests.
+     * @return Threads currently in the registry, dead or alive
+     */
+    static Set<Thread> getRegisteredThreads() {
+        return threadTransactions.stream()
+            .map(transactions -> transactions.thread.get())
+            .filter(Objects::nonNull)
+            .collect(Collectors.toSet());
+    }
+
+    private static ThreadTransactions createCurrentThreadTransactions() {
+        final Thread current = Thread.currentThread();
+        final ThreadTransactions transactions = new ThreadTransactions(current);
+        // Virtual threads are registered by monitor while running a transaction
+        if (!current.isVirtual()) {
+            if (registrationCounter.incrementAndGet() % PRUNE_INTERVAL == 0) {
+                threadTransactions.removeIf(ThreadTransactions::isDead);
+            }
+            threadTransactions.add(transactions);
+        }
+        return transactions;
     }
 
     private static String argumentsToString(final Object[] args) {
         final StringBuilder arguments = new StringBuilder(100);
-        PerformanceMonitorAspect.buildValueToString(arguments, args);
+        PerformanceMonitorAspect.buildValueToString(arguments, args, PerformanceMonitorAspect.MAX_MESSAGE_LENGTH);
 
         return arguments.toString();
     }
 
-    private record TransactionDetails(String method, Object[] args, Long starttime) {
+    /**
+     * Stack of the transactions running on one thread, as transactional methods can call each other.
+     * Only the owner thread writes, and the volatile depth publishes the pushed slot to the readers.
+     * A snapshot taken while the thread is running can miss a transaction that just started or ended.
+     */
+    private static final class ThreadTransactions {
+        private static final int INITIAL_DEPTH = 4;
+
+        private final WeakReference<Thread> thread;
+        private final boolean virtual;
+        private String[] methods = new String[INITIAL_DEPTH];
+        private Object[][] args = new Object[INITIAL_DEPTH][];
+        private long[] startNanos = new long[INITIAL_DEPTH];
+        private volatile int depth = 0;
+
+        private ThreadTransactions(final Thread thread) {
+            this.thread = new WeakReference<>(thread);
+            this.virtual = thread.isVirtual();
+        }
+
+        private boolean isVirtual() {
+            return virtual;
+        }
+
+        private boolean isEmpty() {
+            return depth == 0;
+        }
+
+        private void push(final String method, final Object[] arguments, final long start) {
+            final int index = depth;
+            if (index == methods.length) {
+                methods = Arrays.copyOf(methods, index * 2);
+                args = Arrays.copyOf(args, index * 2);
+                startNanos = Arrays.copyOf(startNanos, index * 2);
+            }
+            methods[index] = method;
+            args[index] = arguments;
+            startNanos[index] = start;
+            depth = index + 1;
+        }
+
+        private void pop() {
+            final int index = depth - 1;
+            depth = index;
+            // Don't keep the arguments reachable after the transaction
+            methods[index] = null;
+            args[index] = null;
+        }
+
+        private List<TransactionDetails> snapshot() {
+            final int count = depth;
+            final String[] currentMethods = methods;
+            final Object[][] currentArgs = args;
+            final long[] currentStartNanos = startNanos;
+
+            final List<TransactionDetails> details = new ArrayList<>(count);
+            for (int index = 0; index < count && index < currentMethods.length; index++) {
+                final String method = currentMethods[index];
+                // Slot was popped while reading
+                if (method != null) {
+                    details.add(new TransactionDetails(method, currentArgs[index], currentStartNanos[index]));
+                }
+            }
+            return details;
+        }
+
+        private boolean isDead() {
+            final Thread owner = thread.get();
+            return owner == null || !owner.isAlive();
+        }
+    }
+
+    private record TransactionDetails(String method, Object[] args, long startNanos) {
         String getLogString() {
             return StringUtil.format("activeTransaction={} ageMs={} arguments {}", method,
-                System.currentTimeMillis() - starttime, argumentsToString(args));
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), argumentsToString(args));
         }
     }
 }
-
@@ -0,0 +1,40 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.util.List;
+
+/**
+ * Channel for broadcasting cache invalidation messages to all nodes of the cluster.
+ */
+public interface CacheInvalidationBus {
+    /**
+     * Publishes given payloads to all subscribers, including the subscribers of this node.
+     * @param payloads Payloads to publish, preferably in one round trip
+     */
+    void publish(List<String> payloads);
+
+    /**
+     * Starts delivering published payloads to given listener.
+     */
+    void subscribe(Listener listener);
+
+    /**
+     * @return Maximum length of a single payload in bytes
+     */
+    default int maxPayloadBytes() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Stops delivering payloads and releases resources.
+     */
+    default void close() {}
+
+    interface Listener {
+        void onMessage(String payload);
+
+        /**
+         * Called when messages might have been lost, e.g. after the connection has been re-established.
+         */
+        default void onMessagesLost() {}
+    }
+}
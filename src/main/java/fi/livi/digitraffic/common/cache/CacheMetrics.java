@@ -0,0 +1,93 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer meters of a single {@link ExpiringCache}.  Meters are registered once, so recording does not allocate.
+ * Meter names follow the naming of Micrometer's own cache metrics.
+ */
+final class CacheMetrics {
+    static final String CACHE_GETS = "cache.gets";
+    static final String CACHE_UNCACHEABLE = "cache.uncacheable";
+    static final String CACHE_EVICTIONS = "cache.evictions";
+    static final String CACHE_LOAD = "cache.load";
+    static final String CACHE_SIZE = "cache.size";
+
+    static final String TAG_CACHE = "cache";
+    static final String TAG_RESULT = "result";
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter uncacheable;
+    private final Counter evictions;
+    private final Timer loadSuccess;
+    private final Timer loadFailure;
+
+    CacheMetrics(final MeterRegistry registry, final String cacheName, final ExpiringCache<?> cache) {
+        this.hits = Counter.builder(CACHE_GETS)
+            .tag(TAG_CACHE, cacheName).tag(TAG_RESULT, "hit")
+            .description("Cache hits")
+            .register(registry);
+        this.misses = Counter.builder(CACHE_GETS)
+            .tag(TAG_CACHE, cacheName).tag(TAG_RESULT, "miss")
+            .description("Cache misses")
+            .register(registry);
+        this.uncacheable = Counter.builder(CACHE_UNCACHEABLE)
+            .tag(TAG_CACHE, cacheName)
+            .description("Loaded results that were marked as non-cacheable")
+            .register(registry);
+        this.evictions = Counter.builder(CACHE_EVICTIONS)
+            .tag(TAG_CACHE, cacheName)
+            .description("Entries evicted because cache was over its size or weight limit")
+            .register(registry);
+        this.loadSuccess = loadTimer(registry, cacheName, "success");
+        this.loadFailure = loadTimer(registry, cacheName, "failure");
+
+        Gauge.builder(CACHE_SIZE, cache, ExpiringCache::size)
+            .tag(TAG_CACHE, cacheName)
+            .description("Count of entries in the cache")
+            .register(registry);
+    }
+
+    private static Timer loadTimer(final MeterRegistry registry, final String cacheName, final String result) {
+        return Timer.builder(CACHE_LOAD)
+            .tag(TAG_CACHE, cacheName).tag(TAG_RESULT, result)
+            .description("Time taken by the supplier to load a value")
+            .publishPercentileHistogram()
+            .register(registry);
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void eviction() {
+        evictions.increment();
+    }
+
+    void loadSucceeded(final long nanos, final boolean cacheable) {
+        loadSuccess.record(nanos, TimeUnit.NANOSECONDS);
+
+        if(!cacheable) {
+            uncacheable.increment();
+        }
+    }
+
+    void bulkLoadSucceeded(final long nanos, final int uncacheableCount) {
+        loadSuccess.record(nanos, TimeUnit.NANOSECONDS);
+        uncacheable.increment(uncacheableCount);
+    }
+
+    void loadFailed(final long nanos) {
+        loadFailure.record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,67 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import fi.livi.digitraffic.common.cache.ExpiringCache.CacheResult;
+
+/**
+ * Holder of a single cached value with TTL.  Reading and clearing the value are lock-free, loading is synchronized
+ * on the slot, so concurrent misses of the same slot share one load while other slots are loaded in parallel.
+ */
+final class CacheSlot<VALUE> {
+    private volatile Entry<VALUE> entry;
+    /** Incremented on every clear, so that entries loaded before it are not valid anymore */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @return Cached entry or null if there is no entry, it has expired or it has been cleared
+     */
+    Entry<VALUE> get(final long now) {
+        final Entry<VALUE> current = entry;
+
+        return current == null || current.isExpired(now) || current.invalidations != invalidations.get() ? null : current;
+    }
+
+    /**
+     * Loads value with given supplier, unless another thread has loaded it while waiting for the lock.
+     * @param ttlNanos Time to live in nanoseconds, negative value means that entry never expires
+     */
+    synchronized VALUE load(final long ttlNanos, final Supplier<CacheResult<VALUE>> supplier) {
+        final Entry<VALUE> current = get(System.nanoTime());
+
+        if(current != null) {
+            return current.value;
+        }
+
+        final long invalidationsBefore = invalidations.get();
+        final CacheResult<VALUE> cacheResult = supplier.get();
+
+        if(cacheResult.cacheable()) {
+            entry = new Entry<>(cacheResult.result(), ttlNanos < 0 ? Long.MAX_VALUE : System.nanoTime() + ttlNanos,
+                invalidationsBefore);
+        } else {
+            entry = null;
+        }
+
+        return cacheResult.result();
+    }
+
+    /**
+     * Clears the value without waiting for a load in progress.  The value of that load won't be returned from
+     * the cache.
+     */
+    void clear() {
+        invalidations.incrementAndGet();
+        entry = null;
+    }
+
+    /**
+     * @param invalidations Invalidation count of the slot when loading of the value started
+     */
+    record Entry<VALUE>(VALUE value, long expiresAt, long invalidations) {
+        boolean isExpired(final long now) {
+            return expiresAt != Long.MAX_VALUE && now - expiresAt >= 0;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.function.Function;
+
+import fi.livi.digitraffic.common.cache.ExpiringCache.CacheResult;
+
+/**
+ * Thread-safe cache with TTL keyed by an enum.  Same semantics as {@link ExpiringCache}, but without building
+ * String keys.  Slots for every enum constant are created up front, so hits are lock-free and don't allocate.
+ */
+public class EnumExpiringCache<KEY extends Enum<KEY>, VALUE> implements InvalidatableCache {
+    private final Class<KEY> keyType;
+    private final EnumMap<KEY, CacheSlot<VALUE>> slots;
+
+    /** Time to live in nanoseconds, negative value means that entries never expire */
+    private final long ttlNanos;
+
+    public EnumExpiringCache(final Class<KEY> keyType, final Duration ttl) {
+        this.ttlNanos = ttl.toNanos();
+        this.keyType = keyType;
+        this.slots = new EnumMap<>(keyType);
+
+        // map is never modified after this, so it's safe to read concurrently
+        for(final KEY key : keyType.getEnumConstants()) {
+            slots.put(key, new CacheSlot<>());
+        }
+    }
+
+    /**
+     * Get result from the cache if present and not expired.  Otherwise, use given loader to generate result.
+     * <p>
+     * If result from the loader is marked as cacheable, populate cache with the result.
+     */
+    public VALUE get(final KEY key, final Function<KEY, CacheResult<VALUE>> loader) {
+        final CacheSlot<VALUE> slot = slots.get(key);
+        final CacheSlot.Entry<VALUE> entry = slot.get(System.nanoTime());
+
+        if(entry != null) {
+            return entry.value();
+        }
+
+        return slot.load(ttlNanos, () -> loader.apply(key));
+    }
+
+    public void invalidate(final KEY key) {
+        slots.get(key).clear();
+    }
+
+    @Override
+    public void invalidate(final String key) {
+        invalidate(Enum.valueOf(keyType, key));
+    }
+
+    @Override
+    public void invalidateAll() {
+        slots.values().forEach(CacheSlot::clear);
+    }
+}
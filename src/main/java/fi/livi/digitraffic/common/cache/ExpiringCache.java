@@ -1,22 +1,150 @@
 package fi.livi.digitraffic.common.cache;
 
-import org.apache.commons.collections4.map.PassiveExpiringMap;
-
+import java.lang.ref.WeakReference;
 import java.time.Duration;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.MeterRegistry;
 
 /**
- * Synchronized and thread-safe cache with TTL.
+ * Thread-safe cache with TTL.
+ * <p>
+ * Cache hits are lock-free.  On a miss the value is loaded with the given supplier so that concurrent misses
+ * for the same key share a single supplier call (single-flight), while misses for other keys are loaded in parallel.
+ * The same applies to asynchronous loads with {@link #getAsync(String, Supplier, Duration)} and bulk loads with
+ * {@link #getAll(Collection, Function)}.
+ * <p>
+ * Optionally entries can be refreshed in the background (stale-while-revalidate).  After refreshAfter has passed,
+ * the stale value is still returned immediately and the supplier is called in the refresh executor.  The entry is
+ * dropped only after the ttl has passed.
+ * <p>
+ * Optionally the cache can be bounded by entry count or by total weight of the values.  When the bound is exceeded,
+ * expired entries are removed first and then the least recently used ones, until a tenth of the bound is free.
+ * Expired entries can also be removed periodically by a background sweeper, so they won't stay in memory when nobody reads the cache.
+ * <p>
+ * Optionally hit/miss counts, load times and size can be recorded as Micrometer metrics.
+ * Use {@link #builder(Duration)} to configure these.
  */
-public class ExpiringCache<VALUE> {
-    private final Map<String, VALUE> cache;
+public class ExpiringCache<VALUE> implements InvalidatableCache {
+    private static final Logger log = LoggerFactory.getLogger(ExpiringCache.class);
+
+    private final ConcurrentMap<String, Entry<VALUE>> cache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<CacheResult<VALUE>>> loading = new ConcurrentHashMap<>();
+
+    /** Time to live in nanoseconds, negative value means that entries never expire */
+    private final long ttlNanos;
+    /** Time after which entry is refreshed in the background, negative value means no background refresh */
+    private final long refreshNanos;
+    private final Executor refreshExecutor;
+
+    /** Maximum count of entries, negative value means no limit */
+    private final long maximumSize;
+    /** Maximum total weight of entries, negative value means no limit */
+    private final long maximumWeight;
+    private final ToLongFunction<VALUE> weigher;
+    private final boolean bounded;
+    /** Eviction removes entries until the count is at most this, so that it's not needed again on the next put */
+    private final long evictionSizeTarget;
+    /** Eviction removes entries until the total weight is at most this */
+    private final long evictionWeightTarget;
+    private final AtomicLong totalWeight = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /**
+     * Incremented on {@link #invalidateAll()}, so that loads started before it won't populate the cache.  Invalidation
+     * of a single key removes the pending load of the key from {@link #loading} instead.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /** Null when metrics are not enabled */
+    private final CacheMetrics metrics;
 
     private static final String DEFAULT_CACHE_KEY = "DEFAULT";
 
+    /** Result of a key that the bulk loader didn't return, compared by identity */
+    private static final CacheResult<?> NOT_LOADED = new CacheResult<>(false, null);
+
+    /** Eviction frees this fraction (1/n) of the maximum size or weight at once */
+    private static final int EVICTION_BATCH_DIVISOR = 10;
+
+    /**
+     * Shared executor for background refreshes.  It is bounded, so when it is saturated refreshes are skipped and
+     * stale values are served until the entry expires and is loaded inline.
+     */
+    private static final Executor DEFAULT_REFRESH_EXECUTOR = createRefreshExecutor();
+
     public ExpiringCache(final Duration d) {
-        this.cache = Collections.synchronizedMap(new PassiveExpiringMap<>(d.toMillis()));
+        this(new Builder<>(d));
+    }
+
+    /**
+     * @param ttl          Entries are dropped after this
+     * @param refreshAfter Entries older than this are returned as is and refreshed in the background
+     */
+    public ExpiringCache(final Duration ttl, final Duration refreshAfter) {
+        this(new Builder<VALUE>(ttl).refreshAfter(refreshAfter));
+    }
+
+    /**
+     * @param ttl             Entries are dropped after this
+     * @param refreshAfter    Entries older than this are returned as is and refreshed in the background
+     * @param refreshExecutor Executor to run the background refreshes in
+     */
+    public ExpiringCache(final Duration ttl, final Duration refreshAfter, final Executor refreshExecutor) {
+        this(new Builder<VALUE>(ttl).refreshAfter(refreshAfter).refreshExecutor(refreshExecutor));
+    }
+
+    private ExpiringCache(final Builder<VALUE> builder) {
+        this.ttlNanos = builder.ttl.toNanos();
+        this.refreshNanos = builder.refreshAfter == null || (ttlNanos >= 0 && builder.refreshAfter.toNanos() >= ttlNanos) ?
+                            -1 : builder.refreshAfter.toNanos();
+        this.refreshExecutor = builder.refreshExecutor;
+        this.maximumSize = builder.maximumSize;
+        this.maximumWeight = builder.maximumWeight;
+        this.weigher = builder.weigher;
+        this.bounded = maximumSize >= 0 || maximumWeight >= 0;
+        this.evictionSizeTarget = maximumSize - maximumSize / EVICTION_BATCH_DIVISOR;
+        this.evictionWeightTarget = maximumWeight - maximumWeight / EVICTION_BATCH_DIVISOR;
+        this.metrics = builder.meterRegistry == null ? null : new CacheMetrics(builder.meterRegistry, builder.name, this);
+
+        if(builder.sweepInterval != null) {
+            Sweeper.schedule(this, builder.sweepInterval);
+        }
+    }
+
+    /**
+     * @param ttl Entries are dropped after this
+     * @return Builder for a cache with given ttl
+     */
+    public static <VALUE> Builder<VALUE> builder(final Duration ttl) {
+        return new Builder<>(ttl);
     }
 
     public VALUE get(final Supplier<CacheResult<VALUE>> supplier) {
@@ -26,22 +154,750 @@ public class ExpiringCache<VALUE> {
     /**
      * Get result from the cache if present and not expired.  Otherwise, use given supplier to generate result.
      * <p>
-     * If result from the supplier is marked as cacheable, populate cache with the result.
+     * If result from the supplier is marked as cacheable, populate cache with the result.  If another thread is
+     * already loading the same key, wait for its result instead of calling the supplier again.
+     * <p>
+     * If the entry needs refreshing, return it and refresh it in the background with given supplier.
+     */
+    public VALUE get(final String key, final Supplier<CacheResult<VALUE>> supplier) {
+        final long now = System.nanoTime();
+        final Entry<VALUE> entry = getEntry(key, now);
+
+        if(entry != null) {
+            if(entry.needsRefresh(now)) {
+                refresh(key, entry, supplier);
+            }
+            return entry.value;
+        }
+
+        return load(key, supplier).result;
+    }
+
+    public CompletableFuture<VALUE> getAsync(final String key,
+                                             final Supplier<CompletableFuture<CacheResult<VALUE>>> supplier) {
+        return getAsync(key, supplier, null);
+    }
+
+    /**
+     * Asynchronous version of {@link #get(String, Supplier)}.  Concurrent callers of the same key share the same
+     * pending load.  Failed and non-cacheable results are not cached.
+     *
+     * @param timeout Optional timeout for the load, after which the returned future fails with TimeoutException
+     * @return Future of the value, already completed if the value was found from the cache
+     */
+    public CompletableFuture<VALUE> getAsync(final String key,
+                                             final Supplier<CompletableFuture<CacheResult<VALUE>>> supplier,
+                                             final Duration timeout) {
+        final long now = System.nanoTime();
+        final Entry<VALUE> entry = getEntry(key, now);
+
+        if(entry != null) {
+            if(entry.needsRefresh(now)) {
+                refreshAsync(key, entry, supplier, timeout);
+            }
+            return CompletableFuture.completedFuture(entry.value);
+        }
+
+        return loadAsync(key, supplier, timeout).thenApply(CacheResult::result);
+    }
+
+    /**
+     * Get results for all given keys.  Values found from the cache are used as is, missing keys are loaded with
+     * one call to the bulk loader and cacheable results are put into the cache in one step.  Keys that are already
+     * being loaded by other threads are not loaded again, but their results are waited for.
+     * <p>
+     * Stale entries are returned without background refresh.
+     *
+     * @param bulkLoader Loads results for given set of keys.  Keys missing from the returned map are not cached
+     *                   and not included in the result.
+     * @return Values by key in the order of given keys
+     */
+    public Map<String, VALUE> getAll(final Collection<String> keys,
+                                     final Function<Set<String>, Map<String, CacheResult<VALUE>>> bulkLoader) {
+        final long now = System.nanoTime();
+        final Map<String, VALUE> result = new LinkedHashMap<>();
+        final Map<String, CompletableFuture<CacheResult<VALUE>>> owned = new LinkedHashMap<>();
+        final Map<String, CompletableFuture<CacheResult<VALUE>>> waiting = new LinkedHashMap<>();
+
+        for(final String key : keys) {
+            if(result.containsKey(key) || owned.containsKey(key) || waiting.containsKey(key)) {
+                continue;
+            }
+
+            final Entry<VALUE> entry = getEntry(key, now);
+            if(entry != null) {
+                result.put(key, entry.value);
+                continue;
+            }
+
+            final CompletableFuture<CacheResult<VALUE>> future = new CompletableFuture<>();
+            final CompletableFuture<CacheResult<VALUE>> inFlight = loading.putIfAbsent(key, future);
+            if(inFlight == null) {
+                owned.put(key, future);
+            } else {
+                waiting.put(key, inFlight);
+            }
+        }
+
+        // load own keys before waiting for others, so that two bulk loads can't wait for each other
+        if(!owned.isEmpty()) {
+            result.putAll(loadAll(owned, bulkLoader));
+        }
+
+        waiting.forEach((key, future) -> {
+            final CacheResult<VALUE> cacheResult = join(future);
+
+            // the other bulk load didn't return this key either
+            if(cacheResult != NOT_LOADED) {
+                result.put(key, cacheResult.result);
+            }
+        });
+
+        // restore the order of the keys
+        final Map<String, VALUE> ordered = new LinkedHashMap<>();
+        for(final String key : keys) {
+            if(result.containsKey(key)) {
+                ordered.put(key, result.get(key));
+            }
+        }
+
+        return ordered;
+    }
+
+    /**
+     * @return Entry if present and not expired, otherwise null
+     */
+    private Entry<VALUE> getEntry(final String key, final long now) {
+        final Entry<VALUE> entry = cache.get(key);
+
+        if(entry != null) {
+            if(!entry.isExpired(now)) {
+                if(bounded) {
+                    entry.lastAccess = now;
+                }
+                if(metrics != null) {
+                    metrics.hit();
+                }
+                return entry;
+            }
+            remove(key, entry);
+        }
+
+        if(metrics != null) {
+            metrics.miss();
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes entry with given key.  Loads of the key that are in progress won't populate the cache.
+     */
+    @Override
+    public void invalidate(final String key) {
+        // unregister the pending load first, so that putLoaded can't put its result after this
+        loading.remove(key);
+
+        // remove waits for a put of the key that is in progress, unlike get
+        final Entry<VALUE> entry = cache.remove(key);
+        if(entry != null && weigher != null) {
+            totalWeight.addAndGet(-entry.weight);
+        }
+    }
+
+    /**
+     * Removes all entries.  Loads that are in progress won't populate the cache.
+     */
+    @Override
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        loading.clear();
+
+        cache.forEach(this::remove);
+    }
+
+    /**
+     * @return Count of entries in the cache, including expired entries that have not been removed yet
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    private CacheResult<VALUE> load(final String key, final Supplier<CacheResult<VALUE>> supplier) {
+        final CompletableFuture<CacheResult<VALUE>> future = new CompletableFuture<>();
+        final CompletableFuture<CacheResult<VALUE>> inFlight = loading.putIfAbsent(key, future);
+
+        if(inFlight != null) {
+            final CacheResult<VALUE> joined = join(inFlight);
+
+            // a bulk load that didn't return this key, load it with own supplier
+            return joined != NOT_LOADED ? joined : load(key, supplier);
+        }
+
+        try {
+            // another thread might have populated the cache between our miss and registering the load
+            final Entry<VALUE> entry = cache.get(key);
+            if(entry != null && !entry.isExpired(System.nanoTime())) {
+                final CacheResult<VALUE> cached = new CacheResult<>(entry.value);
+                future.complete(cached);
+
+                return cached;
+            }
+
+            final long invalidationsBefore = invalidations.get();
+            final CacheResult<VALUE> cacheResult = callSupplier(supplier);
+
+            if(cacheResult.cacheable && putLoaded(key, future, invalidationsBefore, newEntry(cacheResult.result))) {
+                evictIfNeeded();
+            }
+
+            future.complete(cacheResult);
+
+            return cacheResult;
+        } catch(final RuntimeException | Error e) {
+            future.completeExceptionally(e);
+
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * Refresh entry in the background, unless it's already being loaded.  Failed and non-cacheable results
+     * won't replace the stale entry.
+     */
+    private void refresh(final String key, final Entry<VALUE> stale, final Supplier<CacheResult<VALUE>> supplier) {
+        final CompletableFuture<CacheResult<VALUE>> future = new CompletableFuture<>();
+
+        if(loading.putIfAbsent(key, future) != null) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    final CacheResult<VALUE> cacheResult = callSupplier(supplier);
+
+                    if(cacheResult.cacheable) {
+                        replace(key, stale, newEntry(cacheResult.result));
+                    }
+
+                    future.complete(cacheResult);
+                } catch(final RuntimeException | Error e) {
+                    log.warn("method=refresh Failed to refresh key={}", key, e);
+
+                    future.completeExceptionally(e);
+                } finally {
+                    loading.remove(key, future);
+                }
+            });
+        } catch(final RejectedExecutionException e) {
+            log.debug("method=refresh Refresh rejected for key={}", key);
+
+            // possible waiters get the stale value, next call will try to refresh again
+            loading.remove(key, future);
+            future.complete(new CacheResult<>(false, stale.value));
+        }
+    }
+
+    private CompletableFuture<CacheResult<VALUE>> loadAsync(final String key,
+                                                            final Supplier<CompletableFuture<CacheResult<VALUE>>> supplier,
+                                                            final Duration timeout) {
+        final CompletableFuture<CacheResult<VALUE>> future = new CompletableFuture<>();
+        final CompletableFuture<CacheResult<VALUE>> inFlight = loading.putIfAbsent(key, future);
+
+        if(inFlight != null) {
+            // a bulk load that didn't return this key, load it with own supplier
+            final CompletableFuture<CacheResult<VALUE>> joined = inFlight.thenCompose(cacheResult ->
+                cacheResult != NOT_LOADED ? CompletableFuture.completedFuture(cacheResult) : loadAsync(key, supplier, timeout));
+
+            // the pending load might have been started without a timeout or with a longer one
+            return withTimeout(joined, timeout);
+        }
+
+        // another thread might have populated the cache between our miss and registering the load
+        final Entry<VALUE> entry = cache.get(key);
+        if(entry != null && !entry.isExpired(System.nanoTime())) {
+            loading.remove(key, future);
+            future.complete(new CacheResult<>(entry.value));
+
+            return future;
+        }
+
+        final long invalidationsBefore = invalidations.get();
+
+        callAsyncSupplier(supplier, timeout).whenComplete((cacheResult, error) -> {
+            try {
+                if(error == null && cacheResult.cacheable &&
+                   putLoaded(key, future, invalidationsBefore, newEntry(cacheResult.result))) {
+                    evictIfNeeded();
+                }
+            } finally {
+                loading.remove(key, future);
+
+                if(error == null) {
+                    future.complete(cacheResult);
+                } else {
+                    future.completeExceptionally(error);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Asynchronous version of {@link #refresh(String, Entry, Supplier)}.  Supplier is expected to be non-blocking,
+     * so it's called in the calling thread.
+     */
+    private void refreshAsync(final String key, final Entry<VALUE> stale,
+                              final Supplier<CompletableFuture<CacheResult<VALUE>>> supplier, final Duration timeout) {
+        final CompletableFuture<CacheResult<VALUE>> future = new CompletableFuture<>();
+
+        if(loading.putIfAbsent(key, future) != null) {
+            return;
+        }
+
+        callAsyncSupplier(supplier, timeout).whenComplete((cacheResult, error) -> {
+            try {
+                if(error == null && cacheResult.cacheable) {
+                    replace(key, stale, newEntry(cacheResult.result));
+                } else if(error != null) {
+                    log.warn("method=refreshAsync Failed to refresh key={}", key, error);
+                }
+            } finally {
+                loading.remove(key, future);
+
+                if(error == null) {
+                    future.complete(cacheResult);
+                } else {
+                    future.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    private CompletableFuture<CacheResult<VALUE>> callAsyncSupplier(
+        final Supplier<CompletableFuture<CacheResult<VALUE>>> supplier, final Duration timeout) {
+        final long start = System.nanoTime();
+        CompletableFuture<CacheResult<VALUE>> loaded;
+
+        try {
+            loaded = supplier.get();
+        } catch(final RuntimeException | Error e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+
+        loaded = withTimeout(loaded, timeout);
+
+        if(metrics != null) {
+            loaded.whenComplete((cacheResult, error) -> {
+                if(error == null) {
+                    metrics.loadSucceeded(System.nanoTime() - start, cacheResult.cacheable);
+                } else {
+                    metrics.loadFailed(System.nanoTime() - start);
+                }
+            });
+        }
+
+        return loaded;
+    }
+
+    /**
+     * @return Copy of the future that fails after the timeout, so the timeout won't complete the original future
+     * shared with other callers.  The future itself if timeout is null.
+     */
+    private static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final Duration timeout) {
+        return timeout == null ? future : future.copy().orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private Map<String, VALUE> loadAll(final Map<String, CompletableFuture<CacheResult<VALUE>>> owned,
+                                       final Function<Set<String>, Map<String, CacheResult<VALUE>>> bulkLoader) {
+        final Map<String, VALUE> result = new HashMap<>();
+
+        try {
+            final long invalidationsBefore = invalidations.get();
+            final Map<String, CacheResult<VALUE>> loaded = callBulkLoader(bulkLoader, owned.keySet());
+
+            owned.forEach((key, future) -> {
+                final CacheResult<VALUE> cacheResult = loaded.get(key);
+
+                if(cacheResult == null) {
+                    // unregister first, so that the waiters loading the key themselves won't find this load again
+                    loading.remove(key, future);
+                    future.complete(notLoaded());
+                    return;
+                }
+                if(cacheResult.cacheable) {
+                    putLoaded(key, future, invalidationsBefore, newEntry(cacheResult.result));
+                }
+
+                result.put(key, cacheResult.result);
+                future.complete(cacheResult);
+            });
+
+            evictIfNeeded();
+
+            return result;
+        } catch(final RuntimeException | Error e) {
+            owned.values().forEach(future -> future.completeExceptionally(e));
+
+            throw e;
+        } finally {
+            owned.forEach(loading::remove);
+        }
+    }
+
+    private Map<String, CacheResult<VALUE>> callBulkLoader(
+        final Function<Set<String>, Map<String, CacheResult<VALUE>>> bulkLoader, final Set<String> keys) {
+        // give the loader a copy, so it can't modify our set
+        final Set<String> keysToLoad = Set.copyOf(keys);
+
+        if(metrics == null) {
+            return bulkLoader.apply(keysToLoad);
+        }
+
+        final long start = System.nanoTime();
+        try {
+            final Map<String, CacheResult<VALUE>> loaded = bulkLoader.apply(keysToLoad);
+            metrics.bulkLoadSucceeded(System.nanoTime() - start,
+                (int) loaded.values().stream().filter(cacheResult -> !cacheResult.cacheable).count());
+
+            return loaded;
+        } catch(final RuntimeException | Error e) {
+            metrics.loadFailed(System.nanoTime() - start);
+
+            throw e;
+        }
+    }
+
+    private CacheResult<VALUE> callSupplier(final Supplier<CacheResult<VALUE>> supplier) {
+        if(metrics == null) {
+            return supplier.get();
+        }
+
+        final long start = System.nanoTime();
+        try {
+            final CacheResult<VALUE> cacheResult = supplier.get();
+            metrics.loadSucceeded(System.nanoTime() - start, cacheResult.cacheable);
+
+            return cacheResult;
+        } catch(final RuntimeException | Error e) {
+            metrics.loadFailed(System.nanoTime() - start);
+
+            throw e;
+        }
+    }
+
+    private Entry<VALUE> newEntry(final VALUE value) {
+        final long now = System.nanoTime();
+        final long expiresAt = ttlNanos < 0 ? Long.MAX_VALUE : now + ttlNanos;
+        final long refreshAt = refreshNanos < 0 ? expiresAt : now + refreshNanos;
+        final long weight = weigher == null ? 0 : weigher.applyAsLong(value);
+
+        return new Entry<>(value, refreshAt, expiresAt, weight, now);
+    }
+
+    /**
+     * Puts the loaded entry without eviction, unless the key was invalidated after the load was started.  The load
+     * is checked to be still registered while holding the key, so {@link #invalidate(String)} either unregisters it
+     * before the check, or removes the entry after the put.  {@link #invalidateAll()} might miss an entry that is
+     * being put, so its count is checked again after the put.
+     *
+     * @param load                Pending load of the key, registered in {@link #loading}
+     * @param invalidationsBefore Count of {@link #invalidateAll()} calls before the load was started
+     * @return true if the entry was put
      */
-    public synchronized VALUE get(final String key, final Supplier<CacheResult<VALUE>> supplier) {
-        final var response = cache.get(key);
+    private boolean putLoaded(final String key, final CompletableFuture<CacheResult<VALUE>> load,
+                              final long invalidationsBefore, final Entry<VALUE> entry) {
+        final Entry<VALUE> current = cache.compute(key, (k, previous) -> {
+            if(loading.get(k) != load || invalidations.get() != invalidationsBefore) {
+                return previous;
+            }
+            if(weigher != null) {
+                totalWeight.addAndGet(previous == null ? entry.weight : entry.weight - previous.weight);
+            }
+            return entry;
+        });
 
-        if(response != null) {
-            return response;
+        if(current != entry) {
+            return false;
         }
+        if(invalidations.get() != invalidationsBefore) {
+            remove(key, entry);
+            return false;
+        }
+        return true;
+    }
 
-        final var cacheResult = supplier.get();
+    private void replace(final String key, final Entry<VALUE> previous, final Entry<VALUE> entry) {
+        if(cache.replace(key, previous, entry)) {
+            if(weigher != null) {
+                totalWeight.addAndGet(entry.weight - previous.weight);
+            }
 
-        if(cacheResult.cacheable) {
-            cache.put(key, cacheResult.result);
+            evictIfNeeded();
         }
+    }
+
+    private boolean remove(final String key, final Entry<VALUE> entry) {
+        if(cache.remove(key, entry)) {
+            if(weigher != null) {
+                totalWeight.addAndGet(-entry.weight);
+            }
+            return true;
+        }
+        return false;
+    }
 
-        return cacheResult.result;
+    private boolean isOverCapacity() {
+        return (maximumSize >= 0 && cache.size() > maximumSize) ||
+               (maximumWeight >= 0 && totalWeight.get() > maximumWeight);
+    }
+
+    private boolean isOverEvictionTarget() {
+        return (maximumSize >= 0 && cache.size() > evictionSizeTarget) ||
+               (maximumWeight >= 0 && totalWeight.get() > evictionWeightTarget);
+    }
+
+    /**
+     * Removes expired entries and then least recently used entries until cache is a tenth below its bounds.
+     * Evicting a batch at once means that the entries are scanned and sorted only once per a tenth of the maximum
+     * size of puts, instead of on every put of a full cache.  If another thread is already evicting, this does nothing.
+     */
+    private void evictIfNeeded() {
+        if(!bounded || !isOverCapacity() || !evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            removeExpired();
+
+            if(isOverEvictionTarget()) {
+                // snapshot access times, as they might change while sorting
+                final List<EvictionCandidate<VALUE>> candidates = new ArrayList<>(cache.size());
+                cache.forEach((key, entry) -> candidates.add(new EvictionCandidate<>(key, entry, entry.lastAccess)));
+                candidates.sort(Comparator.comparingLong(EvictionCandidate::lastAccess));
+
+                for(final EvictionCandidate<VALUE> candidate : candidates) {
+                    if(!isOverEvictionTarget()) {
+                        break;
+                    }
+                    if(remove(candidate.key, candidate.entry) && metrics != null) {
+                        metrics.eviction();
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return Count of removed entries
+     */
+    int removeExpired() {
+        final long now = System.nanoTime();
+        int removed = 0;
+
+        for(final Map.Entry<String, Entry<VALUE>> mapEntry : cache.entrySet()) {
+            if(mapEntry.getValue().isExpired(now) && remove(mapEntry.getKey(), mapEntry.getValue())) {
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <VALUE> CacheResult<VALUE> notLoaded() {
+        return (CacheResult<VALUE>) NOT_LOADED;
+    }
+
+    private static <VALUE> CacheResult<VALUE> join(final CompletableFuture<CacheResult<VALUE>> future) {
+        try {
+            return future.join();
+        } catch(final CompletionException e) {
+            if(e.getCause() instanceof final RuntimeException re) {
+                throw re;
+            }
+            if(e.getCause() instanceof final Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    private static Executor createRefreshExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(100), daemonThreadFactory("expiring-cache-refresh"));
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static class Builder<VALUE> {
+        private final Duration ttl;
+        private Duration refreshAfter;
+        private Executor refreshExecutor = DEFAULT_REFRESH_EXECUTOR;
+        private long maximumSize = -1;
+        private long maximumWeight = -1;
+        private ToLongFunction<VALUE> weigher;
+        private Duration sweepInterval;
+        private MeterRegistry meterRegistry;
+        private String name;
+
+        private Builder(final Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        /**
+         * @param refreshAfter Entries older than this are returned as is and refreshed in the background
+         */
+        public Builder<VALUE> refreshAfter(final Duration refreshAfter) {
+            if(refreshAfter != null && refreshAfter.isNegative()) {
+                throw new IllegalArgumentException("refreshAfter must not be negative");
+            }
+            this.refreshAfter = refreshAfter;
+            return this;
+        }
+
+        /**
+         * @param refreshExecutor Executor to run the background refreshes in
+         */
+        public Builder<VALUE> refreshExecutor(final Executor refreshExecutor) {
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        /**
+         * @param maximumSize Maximum count of entries in the cache
+         */
+        public Builder<VALUE> maximumSize(final long maximumSize) {
+            if(maximumSize < 0) {
+                throw new IllegalArgumentException("maximumSize must not be negative");
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * @param maximumWeight Maximum total weight of entries in the cache
+         * @param weigher       Calculates weight of a value, for example approximate size in bytes
+         */
+        public Builder<VALUE> maximumWeight(final long maximumWeight, final ToLongFunction<VALUE> weigher) {
+            if(maximumWeight < 0) {
+                throw new IllegalArgumentException("maximumWeight must not be negative");
+            }
+            this.maximumWeight = maximumWeight;
+            this.weigher = weigher;
+            return this;
+        }
+
+        /**
+         * @param sweepInterval How often expired entries are removed in the background
+         */
+        public Builder<VALUE> sweepInterval(final Duration sweepInterval) {
+            if(sweepInterval.isNegative() || sweepInterval.isZero()) {
+                throw new IllegalArgumentException("sweepInterval must be positive");
+            }
+            this.sweepInterval = sweepInterval;
+            return this;
+        }
+
+        /**
+         * Registers metrics of the cache to given registry: size gauge, hit/miss/non-cacheable counters,
+         * eviction counter and load time histogram.  Meters are tagged with the cache name.
+         * @param meterRegistry Registry for the metrics
+         * @param name          Name of the cache, must be unique in the registry
+         */
+        public Builder<VALUE> metrics(final MeterRegistry meterRegistry, final String name) {
+            this.meterRegistry = meterRegistry;
+            this.name = name;
+            return this;
+        }
+
+        public ExpiringCache<VALUE> build() {
+            return new ExpiringCache<>(this);
+        }
+    }
+
+    /**
+     * Removes expired entries periodically.  Holds only a weak reference to the cache, so an unused cache can be
+     * garbage collected and its sweeping is then cancelled.
+     */
+    private static final class Sweeper implements Runnable {
+        private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("expiring-cache-sweeper"));
+
+        private final WeakReference<ExpiringCache<?>> cacheReference;
+        private volatile ScheduledFuture<?> future;
+
+        private Sweeper(final ExpiringCache<?> cache) {
+            this.cacheReference = new WeakReference<>(cache);
+        }
+
+        private static void schedule(final ExpiringCache<?> cache, final Duration interval) {
+            final Sweeper sweeper = new Sweeper(cache);
+            sweeper.future = scheduler.scheduleWithFixedDelay(sweeper, interval.toMillis(), interval.toMillis(),
+                TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            final ExpiringCache<?> cache = cacheReference.get();
+
+            if(cache == null) {
+                if(future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+
+            try {
+                final int removed = cache.removeExpired();
+                log.debug("method=sweep Removed {} expired entries", removed);
+            } catch(final RuntimeException e) {
+                log.error("method=sweep Failed", e);
+            }
+        }
+    }
+
+    private record EvictionCandidate<VALUE>(String key, Entry<VALUE> entry, long lastAccess) {}
+
+    private static final class Entry<VALUE> {
+        private final VALUE value;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final long weight;
+        /** Updated on hits of bounded caches.  Not volatile, as approximate access order is enough for eviction. */
+        private long lastAccess;
+
+        private Entry(final VALUE value, final long refreshAt, final long expiresAt, final long weight,
+                      final long lastAccess) {
+            this.value = value;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+        }
+
+        private boolean isExpired(final long now) {
+            return expiresAt != Long.MAX_VALUE && now - expiresAt >= 0;
+        }
+
+        private boolean needsRefresh(final long now) {
+            return refreshAt != expiresAt && now - refreshAt >= 0;
+        }
     }
 
     public record CacheResult<VALUE>(boolean cacheable, VALUE result) {
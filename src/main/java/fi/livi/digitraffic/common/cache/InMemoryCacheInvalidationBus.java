@@ -0,0 +1,29 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cache invalidation bus inside a single JVM.  Delivers payloads synchronously to all subscribers.
+ * Can be shared by several services to simulate a cluster in tests, or used in single-node deployments.
+ */
+public class InMemoryCacheInvalidationBus implements CacheInvalidationBus {
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(final List<String> payloads) {
+        for(final String payload : payloads) {
+            listeners.forEach(listener -> listener.onMessage(payload));
+        }
+    }
+
+    @Override
+    public void subscribe(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        listeners.clear();
+    }
+}
@@ -0,0 +1,17 @@
+package fi.livi.digitraffic.common.cache;
+
+/**
+ * Cache whose entries can be invalidated explicitly, e.g. by {@link CacheInvalidationBus} messages from other nodes.
+ */
+public interface InvalidatableCache {
+    /**
+     * Removes entry with given key from the cache.
+     * @param key Key of the entry as a string
+     */
+    void invalidate(String key);
+
+    /**
+     * Removes all entries from the cache.
+     */
+    void invalidateAll();
+}
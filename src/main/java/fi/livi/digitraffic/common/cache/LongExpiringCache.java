@@ -0,0 +1,207 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import fi.livi.digitraffic.common.cache.ExpiringCache.CacheResult;
+
+/**
+ * Thread-safe cache with TTL keyed by a primitive long, e.g. station id.  Int keys are widened to long.
+ * Same semantics as {@link ExpiringCache}, but without building String keys or boxing.
+ * <p>
+ * Keys are stored in an open-addressing table, so hits are lock-free and don't allocate.  New keys are added to
+ * the table in place, and the table is copied only when it doubles in size.  The table keeps a slot for every
+ * distinct key loaded, until {@link #removeExpired()} drops the slots without a valid value or
+ * {@link #invalidateAll()} drops all slots.
+ */
+public class LongExpiringCache<VALUE> implements InvalidatableCache {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Time to live in nanoseconds, negative value means that entries never expire */
+    private final long ttlNanos;
+
+    private volatile Table<VALUE> table = new Table<>(INITIAL_CAPACITY);
+
+    public LongExpiringCache(final Duration ttl) {
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * Get result from the cache if present and not expired.  Otherwise, use given loader to generate result.
+     * <p>
+     * If result from the loader is marked as cacheable, populate cache with the result.  Concurrent misses
+     * for the same key share one loader call.
+     */
+    public VALUE get(final long key, final LongFunction<CacheResult<VALUE>> loader) {
+        CacheSlot<VALUE> slot = table.find(key);
+
+        if(slot != null) {
+            final CacheSlot.Entry<VALUE> entry = slot.get(System.nanoTime());
+
+            if(entry != null) {
+                return entry.value();
+            }
+        } else {
+            slot = addSlot(key);
+        }
+
+        return slot.load(ttlNanos, () -> loader.apply(key));
+    }
+
+    public void invalidate(final long key) {
+        final CacheSlot<VALUE> slot = table.find(key);
+
+        if(slot != null) {
+            slot.clear();
+        }
+    }
+
+    @Override
+    public void invalidate(final String key) {
+        invalidate(Long.parseLong(key));
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        table = new Table<>(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return Count of keys in the table, including keys whose value has expired
+     */
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * Drops the slots of keys that have no valid value, i.e. the value has expired or has been invalidated.
+     * Call this periodically if the cache is used with an unbounded set of keys.  A load in progress for a dropped
+     * key completes normally, but its value is not cached.
+     * @return Count of dropped keys
+     */
+    public synchronized int removeExpired() {
+        final long now = System.nanoTime();
+        final Table<VALUE> current = table;
+        int liveCount = 0;
+
+        for(int i = 0; i < current.capacity(); i++) {
+            final CacheSlot<VALUE> slot = current.slots.get(i);
+
+            if(slot != null && slot.get(now) != null) {
+                liveCount++;
+            }
+        }
+
+        final int removed = current.size - liveCount;
+        if(removed > 0) {
+            table = current.copy(capacityFor(liveCount), slot -> slot.get(now) != null);
+        }
+
+        return removed;
+    }
+
+    private synchronized CacheSlot<VALUE> addSlot(final long key) {
+        final Table<VALUE> current = table;
+        final CacheSlot<VALUE> existing = current.find(key);
+
+        if(existing != null) {
+            return existing;
+        }
+
+        final CacheSlot<VALUE> slot = new CacheSlot<>();
+
+        if(capacityFor(current.size + 1) > current.capacity()) {
+            // copy to a table twice as large, so growing is amortized to a constant per key
+            final Table<VALUE> grown = current.copy(current.capacity() * 2, copied -> true);
+            grown.insert(key, slot);
+            table = grown;
+        } else {
+            // readers see the new key only after the slot is set, and other keys are unaffected
+            current.insert(key, slot);
+        }
+
+        return slot;
+    }
+
+    /**
+     * @return Capacity needed to keep load factor at most 0.5, so probe sequences stay short
+     */
+    private static int capacityFor(final int size) {
+        int capacity = INITIAL_CAPACITY;
+
+        while(capacity < size * 2) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+     * Open-addressing table with linear probing.  Keys are only added, and only while holding the lock of the
+     * cache.  A key is written before its slot is published with a volatile write, so lock-free readers that see
+     * the slot also see its key.
+     */
+    private static final class Table<VALUE> {
+        private final long[] keys;
+        private final AtomicReferenceArray<CacheSlot<VALUE>> slots;
+        private final int mask;
+        private volatile int size;
+
+        private Table(final int capacity) {
+            this.keys = new long[capacity];
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        private int capacity() {
+            return keys.length;
+        }
+
+        private CacheSlot<VALUE> find(final long key) {
+            int index = index(key);
+
+            while(true) {
+                final CacheSlot<VALUE> slot = slots.get(index);
+
+                if(slot == null || keys[index] == key) {
+                    return slot;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private void insert(final long key, final CacheSlot<VALUE> slot) {
+            int index = index(key);
+
+            while(slots.get(index) != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            slots.set(index, slot);
+            size++;
+        }
+
+        /**
+         * @param filter Only slots matching this are copied
+         */
+        private Table<VALUE> copy(final int capacity, final Predicate<CacheSlot<VALUE>> filter) {
+            final Table<VALUE> copy = new Table<>(capacity);
+
+            for(int i = 0; i < keys.length; i++) {
+                final CacheSlot<VALUE> slot = slots.get(i);
+
+                if(slot != null && filter.test(slot)) {
+                    copy.insert(keys[i], slot);
+                }
+            }
+            return copy;
+        }
+
+        private int index(final long key) {
+            final long hash = key * 0x9E3779B97F4A7C15L;
+
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import fi.livi.digitraffic.common.util.DataSourceUtil;
+import fi.livi.digitraffic.common.util.ThreadUtil;
+
+/**
+ * Cache invalidation bus using Postgres LISTEN/NOTIFY.
+ * <p>
+ * Payloads are published with pg_notify using the given jdbc template, all payloads of a batch in one statement.
+ * Listening is done with a dedicated connection from the data source, which is kept open while the bus is running.
+ * Before the connection is returned to the pool, listening is stopped with UNLISTEN, or if that fails, the connection
+ * is evicted from the pool, so other users of the pool won't get a session that keeps collecting notifications.
+ * Postgres limits the payload to 8000 bytes.
+ */
+public class PostgresCacheInvalidationBus implements CacheInvalidationBus {
+    private static final Logger log = LoggerFactory.getLogger(PostgresCacheInvalidationBus.class);
+
+    /** Postgres limit is 8000 bytes, leave some room */
+    private static final int MAX_PAYLOAD_BYTES = 7900;
+
+    private static final Pattern CHANNEL_PATTERN = Pattern.compile("[a-z_][a-z0-9_]*");
+    private static final int POLL_TIMEOUT_MS = 500;
+    private static final int RECONNECT_DELAY_MS = 5000;
+    /** Listener notices the close within a poll, so this is long enough unless the db doesn't respond */
+    private static final int CLOSE_TIMEOUT_MS = 4 * POLL_TIMEOUT_MS;
+
+    private static final String NOTIFY = """
+        SELECT pg_notify(:channel, payload)
+        FROM unnest(ARRAY[:payloads]::text[]) AS payload""";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final DataSource dataSource;
+    private final String channel;
+
+    private volatile boolean running = true;
+    private Thread listenerThread;
+    /** Connection of the listener thread, null when not connected */
+    private volatile Connection listenerConnection;
+
+    public PostgresCacheInvalidationBus(final NamedParameterJdbcTemplate jdbcTemplate, final String channel) {
+        if(!CHANNEL_PATTERN.matcher(channel).matches()) {
+            throw new IllegalArgumentException("Invalid channel name " + channel);
+        }
+
+        this.jdbcTemplate = jdbcTemplate;
+        this.dataSource = jdbcTemplate.getJdbcTemplate().getDataSource();
+        this.channel = channel;
+    }
+
+    @Override
+    public void publish(final List<String> payloads) {
+        if(payloads.isEmpty()) {
+            return;
+        }
+
+        final MapSqlParameterSource params = new MapSqlParameterSource("channel", channel)
+            .addValue("payloads", payloads);
+
+        jdbcTemplate.queryForList(NOTIFY, params);
+    }
+
+    @Override
+    public int maxPayloadBytes() {
+        return MAX_PAYLOAD_BYTES;
+    }
+
+    @Override
+    public synchronized void subscribe(final Listener listener) {
+        if(listenerThread != null) {
+            throw new IllegalStateException("Bus already has a listener");
+        }
+
+        listenerThread = new Thread(() -> listen(listener), "cache-invalidation-" + channel);
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    /**
+     * Stops the listener thread and waits for it to release its connection.  If the thread doesn't stop in time,
+     * e.g. because the db doesn't respond, its connection is evicted from the pool.
+     */
+    @Override
+    public void close() {
+        running = false;
+
+        final Thread thread;
+        synchronized(this) {
+            thread = listenerThread;
+        }
+        if(thread == null) {
+            return;
+        }
+
+        thread.interrupt();
+        try {
+            thread.join(CLOSE_TIMEOUT_MS);
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final Connection connection = listenerConnection;
+        if(thread.isAlive() && connection != null) {
+            log.warn("method=close Listener of channel={} did not stop, evicting its connection", channel);
+            DataSourceUtil.evictConnection(dataSource, connection);
+        }
+    }
+
+    private void listen(final Listener listener) {
+        boolean reconnect = false;
+
+        while(running) {
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                listenerConnection = connection;
+                execute(connection, "LISTEN " + channel);
+                log.info("method=listen Listening channel={}", channel);
+
+                // notifications sent while there was no connection are lost
+                if(reconnect) {
+                    listener.onMessagesLost();
+                }
+
+                final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while(running) {
+                    final PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MS);
+
+                    if(notifications != null) {
+                        for(final PGNotification notification : notifications) {
+                            listener.onMessage(notification.getParameter());
+                        }
+                    }
+                }
+            } catch(final SQLException | RuntimeException e) {
+                if(running) {
+                    log.error("method=listen Listening channel={} failed", channel, e);
+                }
+                reconnect = true;
+            } finally {
+                if(connection != null) {
+                    disconnect(connection);
+                }
+            }
+
+            if(running) {
+                delayReconnect();
+            }
+        }
+    }
+
+    /**
+     * Stops listening before the connection is returned to the pool.  If that fails, the connection is evicted,
+     * so the db ends the session and its listening.
+     */
+    private void disconnect(final Connection connection) {
+        listenerConnection = null;
+
+        try {
+            execute(connection, "UNLISTEN *");
+        } catch(final SQLException | RuntimeException e) {
+            log.warn("method=disconnect Failed to stop listening channel={}, evicting the connection", channel, e);
+            DataSourceUtil.evictConnection(dataSource, connection);
+        }
+
+        try {
+            connection.close();
+        } catch(final SQLException e) {
+            log.warn("method=disconnect Failed to close connection of channel={}", channel, e);
+        }
+    }
+
+    private void delayReconnect() {
+        try {
+            ThreadUtil.delayMs(RECONNECT_DELAY_MS);
+        } catch(final RuntimeException e) {
+            // interrupted by close
+            log.debug("method=delayReconnect Interrupted channel={}", channel);
+        }
+    }
+
+    private static void execute(final Connection connection, final String sql) throws SQLException {
+        try(final Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
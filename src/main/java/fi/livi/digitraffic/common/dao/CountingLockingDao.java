@@ -0,0 +1,23 @@
+package fi.livi.digitraffic.common.dao;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * {@link LockingDao} that can also count and search the locks of all instances. Sharded locking
+ * ({@link fi.livi.digitraffic.common.service.locking.ShardedLockingService}) can only be used with these backends.
+ */
+public interface CountingLockingDao extends LockingDao {
+    /**
+     * @param lockNamePrefix Prefix of the lock names to count
+     * @return Count of unexpired locks of any instance with names starting with the given prefix
+     */
+    int countActiveLocks(String lockNamePrefix);
+
+    /**
+     * Searches the given locks with one db round trip.
+     * @param lockNames Names of the locks to search
+     * @return Names of the given locks that are not held by any instance, ie. don't exist or have expired
+     */
+    Set<String> findFreeLocks(Collection<String> lockNames);
+}
@@ -0,0 +1,127 @@
+package fi.livi.digitraffic.common.dao;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * In-memory {@link LockingDao} with the same expiration rules as {@link PostgresLockingDao}.
+ * <p>
+ * Locks are only shared inside one JVM, so this is meant for tests and single node deployments, where lock checks
+ * don't need a db round trip. Time is read from the given clock, so tests can move it to expire locks.
+ * <p>
+ * Enabled with dt.locking.backend={@value #BACKEND}.
+ */
+@ConditionalOnProperty(name = LockingDao.BACKEND_PROPERTY, havingValue = InMemoryLockingDao.BACKEND)
+@Repository
+public class InMemoryLockingDao implements CountingLockingDao {
+    public static final String BACKEND = "memory";
+
+    private final ConcurrentMap<String, LockRow> locks = new ConcurrentHashMap<>();
+    private final Clock clock;
+
+    @Autowired
+    public InMemoryLockingDao() {
+        this(Clock.systemUTC());
+    }
+
+    public InMemoryLockingDao(final Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean acquireLock(final String lockName, final String callerInstanceId, final int expirationSeconds) {
+        return tryAcquireLock(lockName, callerInstanceId, expirationSeconds).isPresent();
+    }
+
+    @Override
+    public Optional<LockLease> tryAcquireLock(final String lockName, final String callerInstanceId, final int expirationSeconds) {
+        final Instant now = clock.instant();
+        final LockRow acquired = new LockRow(callerInstanceId,
+            new LockLease(now, now.plus(Duration.ofSeconds(expirationSeconds))));
+
+        // Same rule as in the upsert of PostgresLockingDao: insert, renew own lock or take over an expired one
+        final LockRow current = locks.compute(lockName, (name, existing) ->
+            existing == null || existing.instanceId().equals(callerInstanceId) || existing.lease().lockExpires().isBefore(now)
+                ? acquired : existing);
+
+        return current == acquired ? Optional.of(acquired.lease()) : Optional.empty();
+    }
+
+    @Override
+    public Map<String, LockLease> acquireLocks(final Map<String, Integer> expirationSecondsByLockName, final String callerInstanceId) {
+        final Map<String, LockLease> leases = new HashMap<>();
+        // Same order as in the db
+        for (final String lockName : new TreeSet<>(expirationSecondsByLockName.keySet())) {
+            tryAcquireLock(lockName, callerInstanceId, expirationSecondsByLockName.get(lockName))
+                .ifPresent(lease -> leases.put(lockName, lease));
+        }
+        return leases;
+    }
+
+    @Override
+    public boolean hasLock(final String lockName, final String callerInstanceId) {
+        final LockRow row = locks.get(lockName);
+        return row != null && row.instanceId().equals(callerInstanceId) && row.lease().lockExpires().isAfter(clock.instant());
+    }
+
+    @Override
+    public int countActiveLocks(final String lockNamePrefix) {
+        final Instant now = clock.instant();
+        return (int) locks.entrySet().stream()
+            .filter(entry -> entry.getKey().startsWith(lockNamePrefix) && entry.getValue().lease().lockExpires().isAfter(now))
+            .count();
+    }
+
+    @Override
+    public Set<String> findFreeLocks(final Collection<String> lockNames) {
+        final Instant now = clock.instant();
+        return lockNames.stream()
+            .filter(lockName -> {
+                final LockRow row = locks.get(lockName);
+                return row == null || !row.lease().lockExpires().isAfter(now);
+            })
+            .collect(Collectors.toSet());
+    }
+
+    @Override
+    public void releaseLock(final String lockName, final String callerInstanceId) {
+        locks.computeIfPresent(lockName, (name, existing) -> existing.instanceId().equals(callerInstanceId) ? null : existing);
+    }
+
+    @Override
+    public void clearExpiredLocks(final int secondsSinceExpired) {
+        clearExpiredLocks(secondsSinceExpired, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int clearExpiredLocks(final int secondsSinceExpired, final int batchSize) {
+        final Instant limit = clock.instant().minusSeconds(secondsSinceExpired);
+        int deletedCount = 0;
+        final Iterator<Map.Entry<String, LockRow>> iterator = locks.entrySet().iterator();
+        while (iterator.hasNext() && deletedCount < batchSize) {
+            final Map.Entry<String, LockRow> entry = iterator.next();
+            // Removes only if the lock wasn't renewed meanwhile
+            if (entry.getValue().lease().lockExpires().isBefore(limit) && locks.remove(entry.getKey(), entry.getValue())) {
+                deletedCount++;
+            }
+        }
+        return deletedCount;
+    }
+
+    private record LockRow(String instanceId, LockLease lease) {}
+}
@@ -0,0 +1,18 @@
+package fi.livi.digitraffic.common.dao;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Lease of an acquired lock as returned by the db.
+ * @param lockLocked  Time when the lock was acquired or renewed, in db time
+ * @param lockExpires Time when the lock expires if not renewed, in db time
+ */
+public record LockLease(Instant lockLocked, Instant lockExpires) {
+    /**
+     * @return Length of the lease, independent of the clock differences between db and this instance
+     */
+    public Duration getDuration() {
+        return Duration.between(lockLocked, lockExpires);
+    }
+}
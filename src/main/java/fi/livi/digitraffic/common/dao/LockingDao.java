@@ -1,104 +1,49 @@
 package fi.livi.digitraffic.common.dao;
 
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.stereotype.Repository;
-import org.springframework.transaction.annotation.Transactional;
+import java.util.Map;
+import java.util.Optional;
 
 /**
- * Usage of this needs table in db:
- * CREATE TABLE locking_table
- * (
- *   lock_name    TEXT NOT NULL PRIMARY KEY,
- *   lock_locked  TIMESTAMP(3) WITH TIME ZONE,
- *   lock_expires TIMESTAMP(3) WITH TIME ZONE,
- *   instance_id  TEXT NOT NULL
- * );
+ * Storage of the locks used by {@link fi.livi.digitraffic.common.service.locking.LockingService}.
+ * The backend is selected with the property {@value #BACKEND_PROPERTY}:
+ * <ul>
+ *     <li>{@value PostgresLockingDao#BACKEND} (default): {@link PostgresLockingDao}, lock rows in locking_table</li>
+ *     <li>{@value PostgresAdvisoryLockingDao#BACKEND}: {@link PostgresAdvisoryLockingDao}, session level advisory locks</li>
+ *     <li>{@value InMemoryLockingDao#BACKEND}: {@link InMemoryLockingDao}, locks inside one JVM for tests and single node deployments</li>
+ * </ul>
  */
+public interface LockingDao {
+    String BACKEND_PROPERTY = "dt.locking.backend";
 
-@Repository
-public class LockingDao {
-
-    private final NamedParameterJdbcTemplate jdbcTemplate;
+    boolean acquireLock(String lockName, String callerInstanceId, int expirationSeconds);
 
     /**
-     * Acquires lock for given instanceId.
-     * If lock doesn't exist then lock is acquired by inserting new lock-row.
-     * If instance already have the lock then lock expiration is updated.
-     * If instance doesn't have the lock but lock exists
-     * then checks if previous lock has expired and updates the lock-row.
+     * Acquires or renews the lock with one db round trip.
+     * @return Lease of the lock if the instance holds the lock, otherwise empty
      */
-    private static final String ACQUIRE_LOCK_MERGE = """
-        insert into locking_table(lock_name, instance_id, lock_locked, lock_expires)
-        VALUES (:lockName, :instanceId, clock_timestamp(), clock_timestamp() + :expirationSeconds::integer * interval '1 second')
-        ON CONFLICT (lock_name)
-        DO UPDATE SET
-           instance_id = :instanceId,
-           lock_locked = clock_timestamp(),
-           lock_expires = clock_timestamp() + :expirationSeconds::integer * interval '1 second'
-        where locking_table.instance_id = :instanceId OR locking_table.lock_expires < clock_timestamp()""";
-
-    private static final String RELEASE_LOCK = """
-        DELETE FROM LOCKING_TABLE LT
-        WHERE LT.LOCK_NAME = :lockName
-          AND LT.INSTANCE_ID = :instanceId""";
-
-    private static final String QUERY_LOCK = """
-        SELECT LT.LOCK_NAME
-        FROM LOCKING_TABLE LT
-        WHERE LT.LOCK_NAME = :lockName
-          AND LT.INSTANCE_ID = :instanceId
-          AND LT.LOCK_EXPIRES > clock_timestamp()""";
-
-    private static final String DELETE_EXPIRED_LOCK = """
-        DELETE FROM locking_table
-        WHERE lock_expires < clock_timestamp() - :expirationSeconds::integer * interval '1 second'""";
-
-    private static final String PARAMETER_LOCKNAME = "lockName";
-    private static final String PARAMETER_INSTANCE_ID = "instanceId";
-    private static final String PARAMETER_EXPIRATION_SECONDS = "expirationSeconds";
-
-    @Autowired
-    public LockingDao(final NamedParameterJdbcTemplate jdbcTemplate) {
-        this.jdbcTemplate = jdbcTemplate;
-    }
-
-    @Transactional
-    public boolean acquireLock(final String lockName, final String callerInstanceId, final int expirationSeconds) {
-        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_LOCKNAME, lockName)
-            .addValue(PARAMETER_INSTANCE_ID, callerInstanceId)
-            .addValue(PARAMETER_EXPIRATION_SECONDS, expirationSeconds);
-
-        jdbcTemplate.update(ACQUIRE_LOCK_MERGE, params);
+    Optional<LockLease> tryAcquireLock(String lockName, String callerInstanceId, int expirationSeconds);
 
-        return hasLock(params);
-    }
-
-    @Transactional
-    public boolean hasLock(final String lockName, final String callerInstanceId) {
-        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_LOCKNAME, lockName)
-            .addValue(PARAMETER_INSTANCE_ID, callerInstanceId);
-
-        return hasLock(params);
-    }
+    /**
+     * Acquires or renews all given locks with one db round trip.
+     * @param expirationSecondsByLockName Lock expiration in seconds by lock name
+     * @param callerInstanceId            Instance acquiring the locks
+     * @return Leases by lock name of the locks the instance holds after the call
+     */
+    Map<String, LockLease> acquireLocks(Map<String, Integer> expirationSecondsByLockName, String callerInstanceId);
 
-    private boolean hasLock(final MapSqlParameterSource params) {
-        // If lock was acquired successfully then query should return one row
-        return jdbcTemplate.queryForList(QUERY_LOCK, params, String.class).size() == 1;
-    }
+    boolean hasLock(String lockName, String callerInstanceId);
 
-    @Transactional
-    public void releaseLock(final String lockName, final String callerInstanceId) {
-        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_LOCKNAME, lockName)
-            .addValue(PARAMETER_INSTANCE_ID, callerInstanceId);
+    void releaseLock(String lockName, String callerInstanceId);
 
-        jdbcTemplate.update(RELEASE_LOCK, params);
-    }
+    /**
+     * Removes locks that have been expired for given time. Backends without persistent lock state do nothing.
+     */
+    void clearExpiredLocks(int secondsSinceExpired);
 
-    @Transactional
-    public void clearExpiredLocks(final int secondsSinceExpired) {
-        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_EXPIRATION_SECONDS, secondsSinceExpired);
-        jdbcTemplate.update(DELETE_EXPIRED_LOCK, params);
-    }
+    /**
+     * Removes at most batchSize locks that have been expired for given time. Rows locked by other transactions are
+     * skipped, so this never waits for lock renewals. Backends without persistent lock state do nothing.
+     * @return Count of removed locks
+     */
+    int clearExpiredLocks(int secondsSinceExpired, int batchSize);
 }
@@ -0,0 +1,215 @@
+package fi.livi.digitraffic.common.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.stereotype.Repository;
+
+import fi.livi.digitraffic.common.util.DataSourceUtil;
+
+/**
+ * {@link LockingDao} using Postgres session level advisory locks.
+ * <p>
+ * Locks are taken with pg_try_advisory_lock on a dedicated connection, which is taken from the data source and kept
+ * open while the dao is in use. Holding a lock causes no writes to the db, and if the connection dies the db releases
+ * all of its locks immediately. Renewal of a held lock only checks that the connection is alive, so the lease returned
+ * is always the requested expiration counted from the db time of the check.
+ * <p>
+ * The connection identifies the instance, so the instance id is not stored anywhere. The lock name is hashed to the
+ * advisory lock key with hashtext, and {@link #LOCK_NAMESPACE} is used as the first key to keep these locks apart
+ * from other advisory locks of the db. Two lock names hashing to the same key would share the lock. Locks can't be
+ * counted by name, so this is not a {@link CountingLockingDao} and can't be used for sharded locking.
+ * <p>
+ * Enabled with dt.locking.backend={@value #BACKEND}.
+ */
+@ConditionalOnProperty(name = LockingDao.BACKEND_PROPERTY, havingValue = PostgresAdvisoryLockingDao.BACKEND)
+@Repository
+public class PostgresAdvisoryLockingDao implements LockingDao, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(PostgresAdvisoryLockingDao.class);
+
+    public static final String BACKEND = "advisory";
+
+    /** First key of the two-key advisory locks, "dtlk" as an integer */
+    public static final int LOCK_NAMESPACE = 0x64746c6b;
+
+    /**
+     * Tries to take the locks that are not yet held, and returns the ones held after the call.
+     * Already held locks are not taken again, as session level advisory locks are reentrant and would need
+     * as many unlocks. CASE guarantees that pg_try_advisory_lock is not evaluated for them.
+     */
+    private static final String ACQUIRE_LOCKS = """
+        SELECT l.lock_name, clock_timestamp() AS lock_locked, clock_timestamp() + l.expiration_seconds * interval '1 second' AS lock_expires
+        FROM unnest(ARRAY[:lockNames]::text[], ARRAY[:expirationSeconds]::integer[], ARRAY[:held]::boolean[])
+             AS l(lock_name, expiration_seconds, held)
+        WHERE CASE WHEN l.held THEN true ELSE pg_try_advisory_lock(:namespace, hashtext(l.lock_name)) END""";
+
+    private static final String RELEASE_LOCK = """
+        SELECT pg_advisory_unlock(:namespace, hashtext(:lockName))""";
+
+    private static final String CHECK_CONNECTION = "SELECT 1";
+
+    private static final String RELEASE_ALL_LOCKS = "SELECT pg_advisory_unlock_all()";
+
+    private final DataSource dataSource;
+
+    /** Pinned connection, null when not connected. Guarded by this. */
+    private SingleConnectionDataSource connection;
+    /** Connection of the pool wrapped by the pinned connection. Guarded by this. */
+    private Connection pooledConnection;
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    /** Locks held by the pinned connection. Guarded by this. */
+    private final Set<String> heldLocks = new HashSet<>();
+
+    @Autowired
+    public PostgresAdvisoryLockingDao(final NamedParameterJdbcTemplate jdbcTemplate) {
+        this(jdbcTemplate.getJdbcTemplate().getDataSource());
+    }
+
+    public PostgresAdvisoryLockingDao(final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public boolean acquireLock(final String lockName, final String callerInstanceId, final int expirationSeconds) {
+        return tryAcquireLock(lockName, callerInstanceId, expirationSeconds).isPresent();
+    }
+
+    @Override
+    public Optional<LockLease> tryAcquireLock(final String lockName, final String callerInstanceId, final int expirationSeconds) {
+        return Optional.ofNullable(acquireLocks(Map.of(lockName, expirationSeconds), callerInstanceId).get(lockName));
+    }
+
+    @Override
+    public synchronized Map<String, LockLease> acquireLocks(final Map<String, Integer> expirationSecondsByLockName, final String callerInstanceId) {
+        if (expirationSecondsByLockName.isEmpty()) {
+            return Map.of();
+        }
+
+        final List<String> lockNames = List.copyOf(expirationSecondsByLockName.keySet());
+        final MapSqlParameterSource params = new MapSqlParameterSource("lockNames", lockNames)
+            .addValue("expirationSeconds", lockNames.stream().map(expirationSecondsByLockName::get).toList())
+            .addValue("held", lockNames.stream().map(heldLocks::contains).toList())
+            .addValue("namespace", LOCK_NAMESPACE);
+
+        final Map<String, LockLease> leases = execute(template -> template.query(ACQUIRE_LOCKS, params, (rs, rowNum) ->
+                Map.entry(rs.getString("lock_name"),
+                    new LockLease(rs.getTimestamp("lock_locked").toInstant(), rs.getTimestamp("lock_expires").toInstant()))))
+            .stream()
+            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        heldLocks.addAll(leases.keySet());
+
+        return leases;
+    }
+
+    @Override
+    public synchronized boolean hasLock(final String lockName, final String callerInstanceId) {
+        if (!heldLocks.contains(lockName)) {
+            return false;
+        }
+
+        // Locks are held as long as the connection is alive
+        execute(template -> template.getJdbcTemplate().queryForObject(CHECK_CONNECTION, Integer.class));
+        return heldLocks.contains(lockName);
+    }
+
+    @Override
+    public synchronized void releaseLock(final String lockName, final String callerInstanceId) {
+        if (!heldLocks.remove(lockName)) {
+            return;
+        }
+
+        final MapSqlParameterSource params = new MapSqlParameterSource("lockName", lockName)
+            .addValue("namespace", LOCK_NAMESPACE);
+        execute(template -> template.queryForObject(RELEASE_LOCK, params, Boolean.class));
+    }
+
+    /**
+     * Advisory locks leave nothing behind in the db, so there is nothing to clear.
+     */
+    @Override
+    public void clearExpiredLocks(final int secondsSinceExpired) {
+    }
+
+    @Override
+    public int clearExpiredLocks(final int secondsSinceExpired, final int batchSize) {
+        return 0;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        disconnect();
+    }
+
+    private <T> T execute(final JdbcCall<T> call) {
+        try {
+            return call.execute(getJdbcTemplate());
+        } catch (final DataAccessException e) {
+            // State of the session is unknown, so release all of its locks and start over with a new session
+            log.warn("method=execute Advisory lock connection failed, releasing heldLockCount={}", heldLocks.size(), e);
+            disconnect();
+            throw e;
+        }
+    }
+
+    private NamedParameterJdbcTemplate getJdbcTemplate() {
+        if (connection == null) {
+            try {
+                pooledConnection = dataSource.getConnection();
+                pooledConnection.setAutoCommit(true);
+                connection = new SingleConnectionDataSource(pooledConnection, true);
+            } catch (final SQLException e) {
+                throw new CannotGetJdbcConnectionException("Failed to get connection for advisory locks", e);
+            }
+            jdbcTemplate = new NamedParameterJdbcTemplate(connection);
+        }
+
+        return jdbcTemplate;
+    }
+
+    /**
+     * Releases all advisory locks of the session before the connection is returned to the pool. Otherwise a session
+     * that is still alive, e.g. after a statement timeout, would keep the locks while the pool hands it to other
+     * code, and no instance could take the locks. If releasing fails, the connection is evicted from the pool, so
+     * the db ends the session and releases the locks.
+     */
+    private void disconnect() {
+        heldLocks.clear();
+
+        if (connection != null) {
+            try {
+                jdbcTemplate.getJdbcTemplate().execute(RELEASE_ALL_LOCKS);
+            } catch (final DataAccessException e) {
+                log.warn("method=disconnect Failed to release advisory locks, evicting the connection", e);
+                DataSourceUtil.evictConnection(dataSource, pooledConnection);
+            }
+            // Closes the target connection, which returns it to the pool of the data source
+            connection.destroy();
+            connection = null;
+            jdbcTemplate = null;
+            pooledConnection = null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface JdbcCall<T> {
+        T execute(NamedParameterJdbcTemplate template);
+    }
+}
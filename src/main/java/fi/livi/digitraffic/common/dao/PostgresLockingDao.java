@@ -0,0 +1,241 @@
+package fi.livi.digitraffic.common.dao;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Table based {@link LockingDao}. This is the default backend, and it is used when dt.locking.backend is not set
+ * or is set to {@value #BACKEND}.
+ * <p>
+ * Usage of this needs table in db:
+ * CREATE TABLE locking_table
+ * (
+ *   lock_name    TEXT NOT NULL PRIMARY KEY,
+ *   lock_locked  TIMESTAMP(3) WITH TIME ZONE,
+ *   lock_expires TIMESTAMP(3) WITH TIME ZONE,
+ *   instance_id  TEXT NOT NULL
+ * );
+ * Index on lock_expires is optional, it makes cleanup of expired locks cheaper when there are lots of locks.
+ * It can be created with {@link #createLockExpiresIndex()} or with {@link #CREATE_LOCK_EXPIRES_INDEX} in a migration.
+ */
+@ConditionalOnProperty(name = LockingDao.BACKEND_PROPERTY, havingValue = PostgresLockingDao.BACKEND, matchIfMissing = true)
+@Repository
+public class PostgresLockingDao implements CountingLockingDao {
+    public static final String BACKEND = "table";
+
+    /**
+     * Creates index for cleanup of expired locks. Created concurrently, so it won't block lock renewals,
+     * and therefore it can't be run inside a transaction.
+     */
+    public static final String CREATE_LOCK_EXPIRES_INDEX = """
+        CREATE INDEX CONCURRENTLY IF NOT EXISTS locking_table_lock_expires_i ON locking_table (lock_expires)""";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Acquires lock for given instanceId.
+     * If lock doesn't exist then lock is acquired by inserting new lock-row.
+     * If instance already have the lock then lock expiration is updated.
+     * If instance doesn't have the lock but lock exists
+     * then checks if previous lock has expired and updates the lock-row.
+     * Row is returned only if it was inserted or updated, so the statement tells in one round trip
+     * whether the instance holds the lock and when the lock expires.
+     */
+    private static final String ACQUIRE_LOCK_MERGE = """
+        insert into locking_table(lock_name, instance_id, lock_locked, lock_expires)
+        VALUES (:lockName, :instanceId, clock_timestamp(), clock_timestamp() + :expirationSeconds::integer * interval '1 second')
+        ON CONFLICT (lock_name)
+        DO UPDATE SET
+           instance_id = :instanceId,
+           lock_locked = clock_timestamp(),
+           lock_expires = clock_timestamp() + :expirationSeconds::integer * interval '1 second'
+        where locking_table.instance_id = :instanceId OR locking_table.lock_expires < clock_timestamp()
+        RETURNING lock_locked, lock_expires""";
+
+    /**
+     * Acquires or renews multiple locks for given instanceId in one statement.
+     * Same rules apply as in ACQUIRE_LOCK_MERGE. Rows are upserted in lock name order, so concurrent
+     * statements from different instances can't deadlock. Only rows that were inserted or updated are returned,
+     * so the result contains exactly the locks the instance holds.
+     */
+    private static final String ACQUIRE_LOCKS_MERGE = """
+        insert into locking_table(lock_name, instance_id, lock_locked, lock_expires)
+        SELECT l.lock_name, :instanceId, clock_timestamp(), clock_timestamp() + l.expiration_seconds * interval '1 second'
+        FROM unnest(ARRAY[:lockNames]::text[], ARRAY[:expirationSeconds]::integer[]) AS l(lock_name, expiration_seconds)
+        ORDER BY l.lock_name
+        ON CONFLICT (lock_name)
+        DO UPDATE SET
+           instance_id = excluded.instance_id,
+           lock_locked = excluded.lock_locked,
+           lock_expires = excluded.lock_expires
+        where locking_table.instance_id = excluded.instance_id OR locking_table.lock_expires < clock_timestamp()
+        RETURNING lock_name, lock_locked, lock_expires""";
+
+    private static final String RELEASE_LOCK = """
+        DELETE FROM LOCKING_TABLE LT
+        WHERE LT.LOCK_NAME = :lockName
+          AND LT.INSTANCE_ID = :instanceId""";
+
+    private static final String QUERY_LOCK = """
+        SELECT LT.LOCK_NAME
+        FROM LOCKING_TABLE LT
+        WHERE LT.LOCK_NAME = :lockName
+          AND LT.INSTANCE_ID = :instanceId
+          AND LT.LOCK_EXPIRES > clock_timestamp()""";
+
+    private static final String COUNT_ACTIVE_LOCKS = """
+        SELECT count(*)
+        FROM LOCKING_TABLE LT
+        WHERE starts_with(LT.LOCK_NAME, :lockNamePrefix)
+          AND LT.LOCK_EXPIRES > clock_timestamp()""";
+
+    private static final String QUERY_ACTIVE_LOCKS = """
+        SELECT LT.LOCK_NAME
+        FROM LOCKING_TABLE LT
+        WHERE LT.LOCK_NAME IN (:lockNames)
+          AND LT.LOCK_EXPIRES > clock_timestamp()""";
+
+    private static final String DELETE_EXPIRED_LOCK = """
+        DELETE FROM locking_table
+        WHERE lock_expires < clock_timestamp() - :expirationSeconds::integer * interval '1 second'""";
+
+    /**
+     * Deletes one batch of expired locks. Rows locked by renewals are skipped, so the cleanup never waits for them,
+     * and ctid lookup deletes exactly the selected row versions.
+     */
+    private static final String DELETE_EXPIRED_LOCKS_BATCH = """
+        DELETE FROM locking_table
+        WHERE ctid = ANY(ARRAY(
+            SELECT ctid
+            FROM locking_table
+            WHERE lock_expires < clock_timestamp() - :expirationSeconds::integer * interval '1 second'
+            LIMIT :batchSize
+            FOR UPDATE SKIP LOCKED))""";
+
+    private static final String PARAMETER_LOCKNAME = "lockName";
+    private static final String PARAMETER_LOCKNAMES = "lockNames";
+    private static final String PARAMETER_INSTANCE_ID = "instanceId";
+    private static final String PARAMETER_EXPIRATION_SECONDS = "expirationSeconds";
+
+    private static final RowMapper<LockLease> LEASE_ROW_MAPPER = (rs, rowNum) ->
+        new LockLease(rs.getTimestamp("lock_locked").toInstant(), rs.getTimestamp("lock_expires").toInstant());
+
+    @Autowired
+    public PostgresLockingDao(final NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    @Transactional
+    public boolean acquireLock(final String lockName, final String callerInstanceId, final int expirationSeconds) {
+        return tryAcquireLock(lockName, callerInstanceId, expirationSeconds).isPresent();
+    }
+
+    @Override
+    @Transactional
+    public Optional<LockLease> tryAcquireLock(final String lockName, final String callerInstanceId, final int expirationSeconds) {
+        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_LOCKNAME, lockName)
+            .addValue(PARAMETER_INSTANCE_ID, callerInstanceId)
+            .addValue(PARAMETER_EXPIRATION_SECONDS, expirationSeconds);
+
+        return jdbcTemplate.query(ACQUIRE_LOCK_MERGE, params, LEASE_ROW_MAPPER).stream().findFirst();
+    }
+
+    @Override
+    @Transactional
+    public Map<String, LockLease> acquireLocks(final Map<String, Integer> expirationSecondsByLockName, final String callerInstanceId) {
+        if (expirationSecondsByLockName.isEmpty()) {
+            return Map.of();
+        }
+
+        final List<String> lockNames = List.copyOf(expirationSecondsByLockName.keySet());
+        final List<Integer> expirationSeconds = lockNames.stream().map(expirationSecondsByLockName::get).toList();
+        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_LOCKNAMES, lockNames)
+            .addValue(PARAMETER_INSTANCE_ID, callerInstanceId)
+            .addValue(PARAMETER_EXPIRATION_SECONDS, expirationSeconds);
+
+        final Map<String, LockLease> leases = new HashMap<>();
+        jdbcTemplate.query(ACQUIRE_LOCKS_MERGE, params,
+            rs -> { leases.put(rs.getString("lock_name"), LEASE_ROW_MAPPER.mapRow(rs, 0)); });
+
+        return leases;
+    }
+
+    @Override
+    @Transactional
+    public boolean hasLock(final String lockName, final String callerInstanceId) {
+        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_LOCKNAME, lockName)
+            .addValue(PARAMETER_INSTANCE_ID, callerInstanceId);
+
+        return hasLock(params);
+    }
+
+    private boolean hasLock(final MapSqlParameterSource params) {
+        // If lock was acquired successfully then query should return one row
+        return jdbcTemplate.queryForList(QUERY_LOCK, params, String.class).size() == 1;
+    }
+
+    @Override
+    @Transactional
+    public int countActiveLocks(final String lockNamePrefix) {
+        final MapSqlParameterSource params = new MapSqlParameterSource("lockNamePrefix", lockNamePrefix);
+        final Integer count = jdbcTemplate.queryForObject(COUNT_ACTIVE_LOCKS, params, Integer.class);
+        return count != null ? count : 0;
+    }
+
+    @Override
+    @Transactional
+    public Set<String> findFreeLocks(final Collection<String> lockNames) {
+        if (lockNames.isEmpty()) {
+            return Set.of();
+        }
+        final MapSqlParameterSource params = new MapSqlParameterSource("lockNames", lockNames);
+        final Set<String> free = new HashSet<>(lockNames);
+        jdbcTemplate.queryForList(QUERY_ACTIVE_LOCKS, params, String.class).forEach(free::remove);
+        return free;
+    }
+
+    @Override
+    @Transactional
+    public void releaseLock(final String lockName, final String callerInstanceId) {
+        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_LOCKNAME, lockName)
+            .addValue(PARAMETER_INSTANCE_ID, callerInstanceId);
+
+        jdbcTemplate.update(RELEASE_LOCK, params);
+    }
+
+    @Override
+    @Transactional
+    public void clearExpiredLocks(final int secondsSinceExpired) {
+        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_EXPIRATION_SECONDS, secondsSinceExpired);
+        jdbcTemplate.update(DELETE_EXPIRED_LOCK, params);
+    }
+
+    @Override
+    @Transactional
+    public int clearExpiredLocks(final int secondsSinceExpired, final int batchSize) {
+        final MapSqlParameterSource params = new MapSqlParameterSource(PARAMETER_EXPIRATION_SECONDS, secondsSinceExpired)
+            .addValue("batchSize", batchSize);
+        return jdbcTemplate.update(DELETE_EXPIRED_LOCKS_BATCH, params);
+    }
+
+    /**
+     * Creates index on lock_expires if it doesn't exist. Must not be called inside a transaction.
+     */
+    public void createLockExpiresIndex() {
+        jdbcTemplate.getJdbcTemplate().execute(CREATE_LOCK_EXPIRES_INDEX);
+    }
+}
@@ -0,0 +1,244 @@
+package fi.livi.digitraffic.common.service.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import fi.livi.digitraffic.common.annotation.ConditionalOnPropertyNotBlank;
+import fi.livi.digitraffic.common.annotation.NoJobLogging;
+import fi.livi.digitraffic.common.cache.CacheInvalidationBus;
+import fi.livi.digitraffic.common.cache.InvalidatableCache;
+import fi.livi.digitraffic.common.cache.PostgresCacheInvalidationBus;
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.json.JsonMapper;
+
+/**
+ * Broadcasts cache invalidations to all nodes of the cluster.  With this, caches can have long TTLs and be
+ * invalidated explicitly after data updates.
+ * <p>
+ * Caches are registered with a name that is the same on every node.  Invalidations are applied to the local cache
+ * immediately and queued for broadcasting.  Queued invalidations are coalesced and published in batches.
+ * <p>
+ * Enabled by setting property dt.cache.invalidation.channel, which is the Postgres LISTEN/NOTIFY channel to use.
+ * Flush interval can be set with dt.cache.invalidation.flush-interval-ms (default 100 ms).
+ */
+@ConditionalOnPropertyNotBlank("dt.cache.invalidation.channel")
+@Service
+@SuppressWarnings("unused") // Public library API - methods are used by consumers of this library
+public class CacheInvalidationService implements CacheInvalidationBus.Listener, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidationService.class);
+
+    private static final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+    private final CacheInvalidationBus bus;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Map<String, InvalidatableCache> caches = new ConcurrentHashMap<>();
+
+    private final Object pendingLock = new Object();
+    private Set<String> pendingAll = new HashSet<>();
+    private Map<String, Set<String>> pendingKeys = new HashMap<>();
+
+    @Autowired
+    public CacheInvalidationService(final NamedParameterJdbcTemplate jdbcTemplate,
+                                    @Value("${dt.cache.invalidation.channel}") final String channel) {
+        this(new PostgresCacheInvalidationBus(jdbcTemplate, channel));
+    }
+
+    public CacheInvalidationService(final CacheInvalidationBus bus) {
+        this.bus = bus;
+        bus.subscribe(this);
+    }
+
+    /**
+     * Registers cache to receive invalidations from other nodes.
+     * @param cacheName Name of the cache, must be unique and the same on all nodes
+     * @param cache     Cache to register
+     */
+    public void register(final String cacheName, final InvalidatableCache cache) {
+        if(caches.putIfAbsent(cacheName, cache) != null) {
+            throw new IllegalArgumentException(
+                String.format("Cache named %s is already registered. Cache name must be unique.", cacheName));
+        }
+    }
+
+    /**
+     * Invalidates given key in the local cache and on all other nodes.
+     */
+    public void invalidate(final String cacheName, final String key) {
+        final InvalidatableCache cache = caches.get(cacheName);
+        if(cache != null) {
+            cache.invalidate(key);
+        }
+
+        synchronized(pendingLock) {
+            if(!pendingAll.contains(cacheName)) {
+                pendingKeys.computeIfAbsent(cacheName, name -> new LinkedHashSet<>()).add(key);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the whole cache locally and on all other nodes.
+     */
+    public void invalidateAll(final String cacheName) {
+        final InvalidatableCache cache = caches.get(cacheName);
+        if(cache != null) {
+            cache.invalidateAll();
+        }
+
+        synchronized(pendingLock) {
+            pendingAll.add(cacheName);
+            pendingKeys.remove(cacheName);
+        }
+    }
+
+    /**
+     * Publishes queued invalidations.  If publishing fails, invalidations are queued again.
+     */
+    @NoJobLogging
+    @Scheduled(fixedDelayString = "${dt.cache.invalidation.flush-interval-ms:100}")
+    public void flush() {
+        final Set<String> all;
+        final Map<String, Set<String>> keys;
+
+        synchronized(pendingLock) {
+            if(pendingAll.isEmpty() && pendingKeys.isEmpty()) {
+                return;
+            }
+
+            all = pendingAll;
+            keys = pendingKeys;
+            pendingAll = new HashSet<>();
+            pendingKeys = new HashMap<>();
+        }
+
+        final List<Invalidation> invalidations = new ArrayList<>();
+        all.forEach(cacheName -> invalidations.add(new Invalidation(cacheName, null)));
+        keys.forEach((cacheName, cacheKeys) ->
+            cacheKeys.forEach(key -> invalidations.add(new Invalidation(cacheName, key))));
+
+        try {
+            final List<String> payloads = new ArrayList<>();
+            addPayloads(invalidations, payloads);
+            bus.publish(payloads);
+
+            log.debug("method=flush Published invalidationCount={} payloadCount={}", invalidations.size(), payloads.size());
+        } catch(final RuntimeException e) {
+            log.error("method=flush Failed to publish invalidationCount={}", invalidations.size(), e);
+
+            all.forEach(this::requeueAll);
+            keys.forEach((cacheName, cacheKeys) -> cacheKeys.forEach(key -> requeue(cacheName, key)));
+        }
+    }
+
+    private void requeueAll(final String cacheName) {
+        synchronized(pendingLock) {
+            pendingAll.add(cacheName);
+            pendingKeys.remove(cacheName);
+        }
+    }
+
+    private void requeue(final String cacheName, final String key) {
+        synchronized(pendingLock) {
+            if(!pendingAll.contains(cacheName)) {
+                pendingKeys.computeIfAbsent(cacheName, name -> new LinkedHashSet<>()).add(key);
+            }
+        }
+    }
+
+    /**
+     * Splits invalidations to payloads that fit into the bus.  A single key too large for the payload is
+     * broadcast as invalidation of the whole cache.
+     */
+    private void addPayloads(final List<Invalidation> invalidations, final List<String> payloads) {
+        final String payload = jsonMapper.writeValueAsString(new InvalidationMessage(instanceId, invalidations));
+
+        if(payload.getBytes(UTF_8).length <= bus.maxPayloadBytes()) {
+            payloads.add(payload);
+        } else if(invalidations.size() > 1) {
+            final int half = invalidations.size() / 2;
+            addPayloads(invalidations.subList(0, half), payloads);
+            addPayloads(invalidations.subList(half, invalidations.size()), payloads);
+        } else {
+            addPayloads(List.of(new Invalidation(invalidations.get(0).cache(), null)), payloads);
+        }
+    }
+
+    @Override
+    public void onMessage(final String payload) {
+        final InvalidationMessage message;
+
+        try {
+            message = jsonMapper.readValue(payload, InvalidationMessage.class);
+        } catch(final JacksonException | IllegalArgumentException e) {
+            log.error("method=onMessage Failed to handle payload={}", payload, e);
+            return;
+        }
+
+        // own invalidations have already been applied
+        if(instanceId.equals(message.source())) {
+            return;
+        }
+
+        message.invalidations().forEach(this::applyInvalidation);
+    }
+
+    /**
+     * Failure of one invalidation, e.g. a key the cache can't parse, doesn't stop the rest of the message.
+     */
+    private void applyInvalidation(final Invalidation invalidation) {
+        final InvalidatableCache cache = caches.get(invalidation.cache());
+
+        if(cache == null) {
+            return;
+        }
+
+        try {
+            if(invalidation.key() == null) {
+                cache.invalidateAll();
+            } else {
+                cache.invalidate(invalidation.key());
+            }
+        } catch(final RuntimeException e) {
+            log.error("method=applyInvalidation Failed to invalidate cache={} key={}", invalidation.cache(),
+                invalidation.key(), e);
+        }
+    }
+
+    @Override
+    public void onMessagesLost() {
+        log.warn("method=onMessagesLost Invalidating all caches cacheCount={}", caches.size());
+
+        caches.values().forEach(InvalidatableCache::invalidateAll);
+    }
+
+    @Override
+    public void destroy() {
+        flush();
+        bus.close();
+    }
+
+    /**
+     * @param key Key to invalidate, null to invalidate the whole cache
+     */
+    record Invalidation(String cache, String key) {}
+
+    record InvalidationMessage(String source, List<Invalidation> invalidations) {}
+}
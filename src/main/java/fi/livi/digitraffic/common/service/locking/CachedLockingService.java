@@ -1,31 +1,52 @@
 package fi.livi.digitraffic.common.service.locking;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
-import org.apache.commons.lang3.time.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
-import org.springframework.scheduling.annotation.Scheduled;
 
-import fi.livi.digitraffic.common.annotation.NoJobLogging;
+import fi.livi.digitraffic.common.dao.LockLease;
 import fi.livi.digitraffic.common.util.StringUtil;
-import fi.livi.digitraffic.common.util.ThreadUtil;
 
 /**
- * Service for locking execution of desired service to single node. This is stateful, and it caches the lock state for one second to reduce db queries.
- * Service tries to acquire lock and update cache once a second and returns the latest state from the cache when asked. So every request for lock state
- * won't trigger new db query. This is done to reduce lock-checking from database, because it might happen quite often for some services.
+ * Service for locking execution of desired service to single node. This is stateful, and it caches the lock state to reduce db queries.
+ * {@link LockingService#renewLocks()} tries to acquire the locks of all active services of the instance and update their cache,
+ * and this returns the latest state from the cache when asked. So every request for lock state won't trigger new db query.
+ * This is done to reduce lock-checking from database, because it might happen quite often for some services.
  * <p>
  * Initially timed behaviour is deactivated and will be activated on first call to hasLock method.
  * It is also possible to manually activate/deactivate timed lock reservation. Call to hasLock will always check and activate this behaviour if it is not activated.
+ * <p>
+ * While the lock is not held, acquiring is tried every second so the lock is taken over quickly. A held lock is renewed
+ * after a third of its expiration has passed, minus a random jitter of at most 10 %, but at least every second.
+ * So the default 3-second lock is renewed every second, while a 60-second lock is renewed about every 20 seconds.
+ * <p>
+ * The cached state is only trusted until the lease returned by the db would expire. The deadline is counted with
+ * {@link System#nanoTime()} from the start of the db request, so it never outlives the lease in the db even if
+ * renewals stall or the clocks of the db and this instance differ.
+ * <p>
+ * Changes of the lock ownership can be followed with a {@link LockListener}. If a MeterRegistry is available,
+ * held state, renewal time, renewal failures and ownership changes of the lock are recorded with lock name as a tag.
  */
 @SuppressWarnings("unused") // Public library API - methods are used by consumers of this library
 public class CachedLockingService implements DisposableBean {
     private static final Logger log = LoggerFactory.getLogger(CachedLockingService.class);
-    private static final Set<String> bookedLockNames = new HashSet<>();
+
+    /** Held lock is renewed after this part of the expiration has passed */
+    private static final int RENEWAL_DIVISOR = 3;
+    /** Maximum part of the renewal interval to renew earlier, so renewals of instances don't synchronize */
+    private static final double RENEWAL_JITTER = 0.1;
 
     /**
      * Default lock expiration in seconds. The lock is refreshed every second, so with a 3-second
@@ -37,8 +58,23 @@ public class CachedLockingService implements DisposableBean {
     private final LockingService lockingService;
     private final String lockName;
     private final int expirationSeconds;
-    private final AtomicBoolean hasLock = new AtomicBoolean(false);
-    private boolean active = false;
+    /** State of the latest successful acquisition, null when the lock is not held */
+    private volatile HeldLock heldLock;
+    /** {@link System#nanoTime()} after which the held lock should be renewed */
+    private volatile long nextRenewalNanos;
+    /** Fencing token of the latest acquisition, never decreases */
+    private long lastFencingToken = 0;
+    /** Completed when the lock is acquired, and replaced with a new one for the next acquisition. Guarded by this. */
+    private CompletableFuture<Void> lockAcquired = new CompletableFuture<>();
+    /**
+     * Completes {@link #lockAcquired}, so the continuations of the waiters run in their own virtual thread instead of
+     * the renewal thread, which they could block
+     */
+    private static final Executor LOCK_ACQUIRED_EXECUTOR = command -> Thread.ofVirtual().name("lock-acquired").start(command);
+    private volatile boolean active = false;
+    private final List<LockListener> listeners = new CopyOnWriteArrayList<>();
+    /** Null if metrics are not enabled */
+    private final LockMetrics metrics;
 
     CachedLockingService(final LockingService lockingService, final String lockName) {
         this(lockingService, lockName, DEFAULT_EXPIRATION_SECONDS);
@@ -47,27 +83,21 @@ public class CachedLockingService implements DisposableBean {
     CachedLockingService(final LockingService lockingService, final String lockName, final int expirationSeconds) {
         this.lockingService = lockingService;
         this.expirationSeconds = expirationSeconds;
-        synchronized (bookedLockNames) {
-            if (bookedLockNames.contains(lockName)) {
-                throw new IllegalArgumentException(
-                        String.format("Lock named %s is already used. Lock name must be unique. Try with another name.",
-                                lockName));
-            }
-            bookedLockNames.add(lockName);
-        }
         this.lockName = lockName;
+        // Reserves the lock name, throws if it is already used
+        lockingService.register(this);
+        this.metrics = lockingService.createLockMetrics(this);
         log.info("method=CachedLockingService Created new {}", this);
     }
 
     /**
-     * Removes given lock name from already used lock names.
-     * Use with caution if you know what you are doing.
+     * Does nothing. Lock names are reserved per {@link LockingService} and released when the service is destroyed,
+     * so names don't leak between Spring contexts anymore.
      * @param lockName Name to remove from used ones.
+     * @deprecated Not needed anymore, will be removed
      */
+    @Deprecated
     public static void removeBookedLock(final String lockName) {
-        synchronized (bookedLockNames) {
-            bookedLockNames.remove(lockName);
-        }
     }
 
     /**
@@ -78,7 +108,7 @@ public class CachedLockingService implements DisposableBean {
         if (!active) {
             activate();
         }
-        return hasLock.get();
+        return isLockValid(heldLock);
     }
 
     /**
@@ -96,23 +126,37 @@ public class CachedLockingService implements DisposableBean {
     @SuppressWarnings("unused") // Public library API - used by consumers of this library
     public void deactivate() {
         this.active = false;
-        hasLock.set(false);
+        clearLockState();
         lockingService.unlock(lockName);
     }
 
     /**
      * Tries to get lock and waits in maximum given time until gives up trying.
+     * The calling thread is parked until the lock is acquired, so waiting costs no cpu and suits virtual threads.
      *
      * @param timeoutMs timeout for trying to get the lock.
      * @return true if lock was successfully acquired.
      */
     @SuppressWarnings("unused") // Public library API - used by consumers of this library
     public boolean lock(final long timeoutMs) {
-        final StopWatch timer = StopWatch.createStarted();
-        while (!hasLock() && timer.getDuration().toMillis() < timeoutMs) {
-            ThreadUtil.delayMs(100);
+        return lockAsync(Duration.ofMillis(timeoutMs)).join();
+    }
+
+    /**
+     * Activates the lock if needed and returns a future that completes when the lock is acquired.
+     * The future is completed after the renewal that acquires the lock, so no thread is used for waiting. Its
+     * continuations run in a new virtual thread, so they can block without delaying the renewals of the locks.
+     *
+     * @param timeout timeout for trying to get the lock.
+     * @return future completing with true when the lock is acquired, or with false if timeout passes first.
+     */
+    public CompletableFuture<Boolean> lockAsync(final Duration timeout) {
+        if (hasLock()) {
+            return CompletableFuture.completedFuture(true);
         }
-        return hasLock();
+        return getLockAcquired()
+            .thenApply(ignored -> true)
+            .completeOnTimeout(false, timeout.toNanos(), TimeUnit.NANOSECONDS);
     }
 
     public String getInstanceId() {
@@ -123,25 +167,201 @@ public class CachedLockingService implements DisposableBean {
         return lockName;
     }
 
+    public int getExpirationSeconds() {
+        return expirationSeconds;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return Expiration time of the lock in db time as returned by the latest renewal, empty if the lock is not held
+     */
+    public Optional<Instant> getLockExpires() {
+        final HeldLock current = heldLock;
+        return isLockValid(current) ? Optional.of(current.lease().lockExpires()) : Optional.empty();
+    }
+
+    /**
+     * Fencing token of the current acquisition. The token changes only when the lock is acquired again after it has
+     * been lost, and it is always greater than the token of any earlier acquisition. As it is based on the db time of
+     * the acquisition, tokens of different instances are comparable too. Writers can reject writes carrying a token
+     * lower than the highest they have seen.
+     * @return Fencing token if the lock is held, otherwise empty
+     */
+    public OptionalLong getFencingToken() {
+        final HeldLock current = heldLock;
+        return isLockValid(current) ? OptionalLong.of(current.fencingToken()) : OptionalLong.empty();
+    }
+
     public String getLockInfoForLogging() {
-        return StringUtil.format("lockName={} hasLock={} isActive={} instanceId={}", getLockName(), hasLock.get(),
+        return StringUtil.format("lockName={} hasLock={} isActive={} instanceId={}", getLockName(), isLockHeld(),
                 active, getInstanceId());
     }
 
-    // Expiration configurable per instance (default 2s), refresh every second
-    @NoJobLogging
-    @Scheduled(fixedRate = 1000)
+    /**
+     * Adds listener for lock ownership changes.
+     */
+    public void addListener(final LockListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final LockListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return true if the lock is held, without activating the lock like {@link #hasLock()} does
+     */
+    boolean isLockHeld() {
+        return isLockValid(heldLock);
+    }
+
+    /**
+     * @param nowNanos {@link System#nanoTime()} of the renewal round
+     * @return true if the lock is not held or the held lock should be renewed
+     */
+    boolean isRenewalDue(final long nowNanos) {
+        return !isLockHeld() || nowNanos - nextRenewalNanos >= 0;
+    }
+
+    /**
+     * Tries to acquire the lock immediately. Periodic refresh is done for all locks of the instance at once
+     * by {@link LockingService#renewLocks()}.
+     */
     public void acquireLock() {
         if (active) {
+            final long requestStartNanos = System.nanoTime();
             try {
-                hasLock.set(lockingService.acquireLock(lockName, expirationSeconds));
+                updateLockState(lockingService.tryAcquireLock(lockName, expirationSeconds).orElse(null), requestStartNanos);
             } catch (final Exception e) {
-                hasLock.set(false);
                 log.error("method=acquireLock Failed for {}", getLockInfoForLogging(), e);
+                renewalFailed(e);
             }
         } else {
-            hasLock.set(false);
+            clearLockState();
+        }
+    }
+
+    /**
+     * Updates the lock state after the lock has been renewed in the db.
+     * @param acquiredLease     Lease of the lock if the instance holds the lock, otherwise null
+     * @param requestStartNanos {@link System#nanoTime()} before the db request was sent
+     */
+    void updateLockState(final LockLease acquiredLease, final long requestStartNanos) {
+        if (metrics != null) {
+            metrics.renewed(System.nanoTime() - requestStartNanos);
+        }
+        final LockStateChange change = applyLockState(acquiredLease, requestStartNanos);
+        // Completed outside the monitor, and not in the renewal thread
+        if (change.acquired() != null) {
+            change.acquired().completeAsync(() -> null, LOCK_ACQUIRED_EXECUTOR);
         }
+        fireOwnershipChange(change.ownershipChange());
+    }
+
+    /**
+     * Marks the lock lost after renewal failed with an error.
+     * @param error Error of the renewal
+     */
+    void renewalFailed(final Exception error) {
+        if (metrics != null) {
+            metrics.renewalFailed();
+        }
+        for (final LockListener listener : listeners) {
+            try {
+                listener.renewalFailed(this, error);
+            } catch (final Exception e) {
+                log.error("method=renewalFailed Listener failed for {}", getLockInfoForLogging(), e);
+            }
+        }
+        clearLockState();
+    }
+
+    private void clearLockState() {
+        fireOwnershipChange(applyLockState(null, 0).ownershipChange());
+    }
+
+    /**
+     * @return Change of the ownership, and the future to complete if the lock is held
+     */
+    private synchronized LockStateChange applyLockState(final LockLease acquiredLease, final long requestStartNanos) {
+        final HeldLock previous = heldLock;
+        final boolean wasValid = isLockValid(previous);
+
+        if (!active || acquiredLease == null) {
+            heldLock = null;
+            return new LockStateChange(previous != null ? OwnershipChange.LOST : OwnershipChange.NONE, null);
+        }
+
+        final long deadlineNanos = requestStartNanos + acquiredLease.getDuration().toNanos();
+        final long fencingToken;
+        if (wasValid) {
+            // Renewal of the same acquisition keeps the token
+            fencingToken = previous.fencingToken();
+        } else {
+            fencingToken = Math.max(acquiredLease.lockLocked().toEpochMilli(), lastFencingToken + 1);
+            lastFencingToken = fencingToken;
+        }
+        heldLock = new HeldLock(acquiredLease, deadlineNanos, fencingToken);
+        nextRenewalNanos = requestStartNanos + renewalIntervalNanos();
+
+        if (wasValid) {
+            // Nobody waits while the lock is held, see getLockAcquired
+            return new LockStateChange(OwnershipChange.NONE, null);
+        }
+        // Waiters of this acquisition are completed by the caller, later waiters wait for the next acquisition
+        final CompletableFuture<Void> acquired = lockAcquired;
+        lockAcquired = new CompletableFuture<>();
+        // Previous lease expired without renewal, so it was lost before this acquisition
+        return new LockStateChange(previous != null ? OwnershipChange.LOST_AND_GAINED : OwnershipChange.GAINED, acquired);
+    }
+
+    private void fireOwnershipChange(final OwnershipChange change) {
+        if (change == OwnershipChange.NONE) {
+            return;
+        }
+        log.info("method=fireOwnershipChange change={} {}", change, getLockInfoForLogging());
+
+        if (change != OwnershipChange.GAINED) {
+            notifyListeners(LockListener::lockLost);
+        }
+        if (change != OwnershipChange.LOST) {
+            notifyListeners(LockListener::lockGained);
+        }
+    }
+
+    private void notifyListeners(final BiConsumer<LockListener, CachedLockingService> event) {
+        if (metrics != null) {
+            metrics.ownershipChanged();
+        }
+        for (final LockListener listener : listeners) {
+            try {
+                event.accept(listener, this);
+            } catch (final Exception e) {
+                log.error("method=notifyListeners Listener failed for {}", getLockInfoForLogging(), e);
+            }
+        }
+    }
+
+    /**
+     * @return Completed future if the lock is held, otherwise future that completes when it is acquired.
+     */
+    private synchronized CompletableFuture<Void> getLockAcquired() {
+        if (isLockValid(heldLock)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return lockAcquired;
+    }
+
+    private long renewalIntervalNanos() {
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(expirationSeconds) / RENEWAL_DIVISOR;
+        return intervalNanos - (long) (intervalNanos * RENEWAL_JITTER * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private static boolean isLockValid(final HeldLock held) {
+        return held != null && System.nanoTime() - held.deadlineNanos() < 0;
     }
 
     @Override
@@ -153,6 +373,26 @@ public class CachedLockingService implements DisposableBean {
     public void destroy() {
         log.info("method=destroy {}", getLockInfoForLogging());
         active = false;
-        bookedLockNames.remove(lockName);
+        lockingService.unregister(this);
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+
+    /**
+     * @param lease         Lease returned by the db
+     * @param deadlineNanos {@link System#nanoTime()} after which the lease can't be trusted anymore
+     * @param fencingToken  Fencing token of the acquisition
+     */
+    private record HeldLock(LockLease lease, long deadlineNanos, long fencingToken) {}
+
+    /**
+     * @param ownershipChange Change of the ownership
+     * @param acquired        Future of the waiters to complete, null if there is nothing to complete
+     */
+    private record LockStateChange(OwnershipChange ownershipChange, CompletableFuture<Void> acquired) {}
+
+    private enum OwnershipChange {
+        NONE, GAINED, LOST, LOST_AND_GAINED
     }
 }
@@ -0,0 +1,28 @@
+package fi.livi.digitraffic.common.service.locking;
+
+/**
+ * Listener for lock ownership changes of a {@link CachedLockingService}.
+ * <p>
+ * Listeners are called from the thread renewing the lock, usually the scheduler running
+ * {@link LockingService#renewLocks()}, so they should return quickly and hand any longer work to another thread.
+ */
+public interface LockListener {
+    /**
+     * Called when the instance acquires the lock it did not hold.
+     */
+    default void lockGained(final CachedLockingService service) {
+    }
+
+    /**
+     * Called when the instance no longer holds the lock. The lock might have been taken by another instance, it might
+     * have expired without renewal or the service might have been deactivated.
+     */
+    default void lockLost(final CachedLockingService service) {
+    }
+
+    /**
+     * Called when renewal of the lock failed because of an error, before {@link #lockLost} is called.
+     */
+    default void renewalFailed(final CachedLockingService service, final Exception error) {
+    }
+}
@@ -0,0 +1,67 @@
+package fi.livi.digitraffic.common.service.locking;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer meters of a single {@link CachedLockingService}. Meters are registered once, so recording does not allocate.
+ * Meters are removed from the registry when the service is destroyed.
+ */
+final class LockMetrics {
+    static final String LOCK_HELD = "lock.held";
+    static final String LOCK_RENEWAL = "lock.renewal";
+    static final String LOCK_RENEWAL_FAILURES = "lock.renewal.failures";
+    static final String LOCK_FLAPS = "lock.flaps";
+
+    static final String TAG_LOCK = "lock";
+
+    private final MeterRegistry registry;
+    private final Timer renewal;
+    private final Counter renewalFailures;
+    private final Counter flaps;
+    private final Gauge held;
+
+    LockMetrics(final MeterRegistry registry, final CachedLockingService service) {
+        final String lockName = service.getLockName();
+        this.registry = registry;
+        this.renewal = Timer.builder(LOCK_RENEWAL)
+            .tag(TAG_LOCK, lockName)
+            .description("Time taken by a db round trip acquiring or renewing the lock")
+            .publishPercentileHistogram()
+            .register(registry);
+        this.renewalFailures = Counter.builder(LOCK_RENEWAL_FAILURES)
+            .tag(TAG_LOCK, lockName)
+            .description("Renewals of the lock that failed with an error")
+            .register(registry);
+        this.flaps = Counter.builder(LOCK_FLAPS)
+            .tag(TAG_LOCK, lockName)
+            .description("Changes of the lock ownership of this instance, gained or lost")
+            .register(registry);
+        this.held = Gauge.builder(LOCK_HELD, service, s -> s.isLockHeld() ? 1 : 0)
+            .tag(TAG_LOCK, lockName)
+            .description("1 if this instance holds the lock, otherwise 0")
+            .register(registry);
+    }
+
+    void renewed(final long nanos) {
+        renewal.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void renewalFailed() {
+        renewalFailures.increment();
+    }
+
+    void ownershipChanged() {
+        flaps.increment();
+    }
+
+    void close() {
+        List.<Meter>of(renewal, renewalFailures, flaps, held).forEach(registry::remove);
+    }
+}
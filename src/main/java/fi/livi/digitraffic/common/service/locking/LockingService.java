@@ -1,12 +1,20 @@
 package fi.livi.digitraffic.common.service.locking;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnNotWebApplication;
 import org.springframework.context.support.GenericApplicationContext;
@@ -15,8 +23,12 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import fi.livi.digitraffic.common.annotation.NoJobLogging;
+import fi.livi.digitraffic.common.dao.CountingLockingDao;
+import fi.livi.digitraffic.common.dao.LockLease;
 import fi.livi.digitraffic.common.dao.LockingDao;
 import fi.livi.digitraffic.common.util.StringUtil;
+import io.micrometer.core.instrument.MeterRegistry;
 
 @ConditionalOnNotWebApplication
 @Service
@@ -24,17 +36,36 @@ import fi.livi.digitraffic.common.util.StringUtil;
 public class LockingService {
     private static final Logger log = LoggerFactory.getLogger(LockingService.class);
 
+    private static final String CLEAR_EXPIRED_LOCKS_LOCK_NAME = "LockingService.clearExpiredLocks";
+    private static final int CLEAR_EXPIRED_LOCKS_EXPIRATION_SECONDS = 5 * 60;
+    private static final int CLEAR_EXPIRED_LOCKS_BATCH_SIZE = 1000;
+
     private final LockingDao lockingDao;
     private final GenericApplicationContext applicationContext;
     private final String instanceId;
-
+    /** Null if metrics are not enabled */
+    private final MeterRegistry meterRegistry;
+    /** Services of this instance by lock name, also reserves the lock names */
+    private final ConcurrentMap<String, CachedLockingService> cachedLockingServices = new ConcurrentHashMap<>();
+    /** Sharded services of this instance by lock name */
+    private final ConcurrentMap<String, ShardedLockingService> shardedLockingServices = new ConcurrentHashMap<>();
 
     @Autowired
+    public LockingService(final LockingDao lockingDao,
+                          final GenericApplicationContext applicationContext,
+                          final ObjectProvider<MeterRegistry> meterRegistry) {
+        this.lockingDao = lockingDao;
+        this.applicationContext = applicationContext;
+        this.instanceId = UUID.randomUUID().toString();
+        this.meterRegistry = meterRegistry.getIfAvailable();
+    }
+
     public LockingService(final LockingDao lockingDao,
                           final GenericApplicationContext applicationContext) {
         this.lockingDao = lockingDao;
         this.applicationContext = applicationContext;
         this.instanceId = UUID.randomUUID().toString();
+        this.meterRegistry = null;
     }
 
     /**
@@ -87,20 +118,61 @@ public class LockingService {
         if (bean.isPresent()) {
             log.info("method=createCachedLockingService Bean {} already exist, returning {}", beanName, lockName);
             return bean.get();
-        } else {
-            log.info("method=createCachedLockingService Bean {} not exist, creating new {}", beanName, lockName);
-            // Clean lock name from reserved as test context won't clear static fields between tests
-            CachedLockingService.removeBookedLock(lockName);
         }
-        // needed to registerBean to initialize @Scheduled annotation
+        log.info("method=createCachedLockingService Bean {} not exist, creating new {}", beanName, lockName);
+        // registered as a bean, so it will be destroyed with the context
         applicationContext.registerBean(beanName, CachedLockingService.class,
                 () -> new CachedLockingService(this, lockName, expirationSeconds));
         return applicationContext.getBean(beanName, CachedLockingService.class);
     }
 
+    /**
+     * Creates sharded locking service for given lock name and registers it as a bean to Spring context.
+     * @param lockName   Name of the lock
+     * @param shardCount Count of shards to share between the instances
+     * @return Registered service bean
+     */
+    public ShardedLockingService createShardedLockingService(final String lockName, final int shardCount) {
+        return createShardedLockingService(lockName, shardCount, CachedLockingService.DEFAULT_EXPIRATION_SECONDS);
+    }
+
+    /**
+     * Creates sharded locking service with a custom lock expiration for given lock name and registers it as a bean.
+     * @param lockName          Name of the lock
+     * @param shardCount        Count of shards to share between the instances
+     * @param expirationSeconds How many seconds until a shard expires if not refreshed
+     * @return Registered service bean
+     * @throws IllegalStateException if the locking backend is not a {@link CountingLockingDao}, like the advisory lock backend
+     */
+    public ShardedLockingService createShardedLockingService(final String lockName, final int shardCount,
+                                                             final int expirationSeconds) {
+        if (!(lockingDao instanceof CountingLockingDao)) {
+            throw new IllegalStateException(String.format(
+                    "Sharded lock %s needs a locking backend that can count locks, %s can't", lockName,
+                    lockingDao.getClass().getSimpleName()));
+        }
+        final String beanName =
+                StringUtil.format("{}.{}", StringUtils.uncapitalize(ShardedLockingService.class.getSimpleName()),
+                        lockName);
+        final Optional<ShardedLockingService> bean = getBeanIfRegistered(beanName, ShardedLockingService.class);
+        if (bean.isPresent()) {
+            log.info("method=createShardedLockingService Bean {} already exist, returning {}", beanName, lockName);
+            return bean.get();
+        }
+        log.info("method=createShardedLockingService Bean {} not exist, creating new {}", beanName, lockName);
+        // registered as a bean, so it will be destroyed with the context
+        applicationContext.registerBean(beanName, ShardedLockingService.class,
+                () -> new ShardedLockingService(this, lockName, shardCount, expirationSeconds));
+        return applicationContext.getBean(beanName, ShardedLockingService.class);
+    }
+
     private Optional<CachedLockingService> getBeanIfRegistered(final String beanName) {
+        return getBeanIfRegistered(beanName, CachedLockingService.class);
+    }
+
+    private <T> Optional<T> getBeanIfRegistered(final String beanName, final Class<T> beanClass) {
         try {
-            return Optional.of((CachedLockingService) applicationContext.getBean(beanName));
+            return Optional.of(beanClass.cast(applicationContext.getBean(beanName)));
         } catch (final NoSuchBeanDefinitionException e) {
             return Optional.empty();
         }
@@ -111,6 +183,15 @@ public class LockingService {
         return lockingDao.acquireLock(lockName, instanceId, expirationSeconds);
     }
 
+    /**
+     * Acquires or renews the lock with one db round trip.
+     * @return Lease of the lock if this instance holds the lock, otherwise empty
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public Optional<LockLease> tryAcquireLock(final String lockName, final int expirationSeconds) {
+        return lockingDao.tryAcquireLock(lockName, instanceId, expirationSeconds);
+    }
+
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     public void unlock(final String lockName) {
         lockingDao.releaseLock(lockName, instanceId);
@@ -120,19 +201,147 @@ public class LockingService {
         return instanceId;
     }
 
+    /**
+     * Reserves the lock name for the service.
+     * @throws IllegalArgumentException if the lock name is already used by another service
+     */
+    void register(final CachedLockingService cachedLockingService) {
+        final String lockName = cachedLockingService.getLockName();
+        if (cachedLockingServices.putIfAbsent(lockName, cachedLockingService) != null) {
+            throw new IllegalArgumentException(
+                    String.format("Lock named %s is already used. Lock name must be unique. Try with another name.",
+                            lockName));
+        }
+    }
+
+    /**
+     * Releases the lock name of the service, if it is still reserved for the service.
+     */
+    void unregister(final CachedLockingService cachedLockingService) {
+        cachedLockingServices.remove(cachedLockingService.getLockName(), cachedLockingService);
+    }
+
+    /**
+     * Reserves the lock name for the sharded service.
+     * @throws IllegalArgumentException if the lock name is already used by another sharded service
+     */
+    void register(final ShardedLockingService shardedLockingService) {
+        final String lockName = shardedLockingService.getLockName();
+        if (shardedLockingServices.putIfAbsent(lockName, shardedLockingService) != null) {
+            throw new IllegalArgumentException(
+                    String.format("Sharded lock named %s is already used. Lock name must be unique. Try with another name.",
+                            lockName));
+        }
+    }
+
+    void unregister(final ShardedLockingService shardedLockingService) {
+        shardedLockingServices.remove(shardedLockingService.getLockName(), shardedLockingService);
+    }
+
+    /**
+     * Acquires or renews given locks for this instance with one db round trip.
+     * @param expirationSecondsByLockName Lock expiration in seconds by lock name
+     * @return Leases by lock name of the locks this instance holds after the call
+     */
+    Map<String, LockLease> acquireLocks(final Map<String, Integer> expirationSecondsByLockName) {
+        // Dao is transactional itself
+        return lockingDao.acquireLocks(expirationSecondsByLockName, instanceId);
+    }
+
+    /**
+     * @param lockNamePrefix Prefix of the lock names to count
+     * @return Count of unexpired locks of any instance with the given prefix
+     */
+    int countActiveLocks(final String lockNamePrefix) {
+        // Only sharded services count locks, and they are created only with a counting backend
+        return ((CountingLockingDao) lockingDao).countActiveLocks(lockNamePrefix);
+    }
+
+    /**
+     * @param lockNames Names of the locks to search
+     * @return Names of the given locks that no instance holds
+     */
+    Set<String> findFreeLocks(final Collection<String> lockNames) {
+        return ((CountingLockingDao) lockingDao).findFreeLocks(lockNames);
+    }
+
+    /**
+     * @return Metrics for the service or null if there is no MeterRegistry
+     */
+    LockMetrics createLockMetrics(final CachedLockingService cachedLockingService) {
+        return meterRegistry != null ? new LockMetrics(meterRegistry, cachedLockingService) : null;
+    }
+
+    /**
+     * Acquires or renews the locks of all active cached locking services of this instance with one db round trip,
+     * and updates their lock states. So the db load depends on the count of instances, not the count of locks.
+     * Only locks that are not held or are due to renewal are included, see {@link CachedLockingService}.
+     */
+    @NoJobLogging
+    @Scheduled(fixedRate = 1000)
+    public void renewLocks() {
+        final long nowNanos = System.nanoTime();
+        final List<CachedLockingService> active = cachedLockingServices.values().stream()
+            .filter(service -> service.isActive() && service.isRenewalDue(nowNanos))
+            .toList();
+
+        if (active.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Integer> expirationSecondsByLockName = active.stream()
+            .collect(Collectors.toMap(CachedLockingService::getLockName, CachedLockingService::getExpirationSeconds));
+
+        final long requestStartNanos = System.nanoTime();
+        try {
+            // Dao is transactional itself, no need to call through the proxy of this service
+            final Map<String, LockLease> leases = lockingDao.acquireLocks(expirationSecondsByLockName, instanceId);
+            active.forEach(service -> service.updateLockState(leases.get(service.getLockName()), requestStartNanos));
+        } catch (final Exception e) {
+            log.error("method=renewLocks Failed for lockCount={} instanceId={}", active.size(), instanceId, e);
+            active.forEach(service -> service.renewalFailed(e));
+        }
+    }
+
+    /**
+     * Renews the shards of all active sharded locking services of this instance and rebalances them
+     * between the instances, see {@link ShardedLockingService}.
+     */
+    @NoJobLogging
+    @Scheduled(fixedRate = 1000)
+    public void rebalanceShards() {
+        shardedLockingServices.values().forEach(ShardedLockingService::rebalance);
+    }
+
     // Run every hour
     @Scheduled(fixedRate = 1000 * 60 * 60)
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
     protected void clearExpiredLocks() {
         // Delete locks that have expired over hour ago
         clearExpiredLocks(60 * 60);
     }
 
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    /**
+     * Deletes expired locks in batches, each batch in its own transaction. Only one instance at a time does the
+     * cleanup, others skip it while the cleanup lock is held.
+     */
     protected void clearExpiredLocks(final int secondsSinceExpired) {
         try {
-            // Delete locks that have expired over hour ago
-            lockingDao.clearExpiredLocks(secondsSinceExpired);
+            if (!lockingDao.acquireLock(CLEAR_EXPIRED_LOCKS_LOCK_NAME, instanceId, CLEAR_EXPIRED_LOCKS_EXPIRATION_SECONDS)) {
+                log.debug("method=clearExpiredLocks Skipped, cleanup is run by another instance");
+                return;
+            }
+            try {
+                int deletedCount = 0;
+                int batchCount;
+                do {
+                    // Dao is transactional itself, so every batch is committed separately
+                    batchCount = lockingDao.clearExpiredLocks(secondsSinceExpired, CLEAR_EXPIRED_LOCKS_BATCH_SIZE);
+                    deletedCount += batchCount;
+                } while (batchCount == CLEAR_EXPIRED_LOCKS_BATCH_SIZE);
+                log.info("method=clearExpiredLocks deletedCount={}", deletedCount);
+            } finally {
+                lockingDao.releaseLock(CLEAR_EXPIRED_LOCKS_LOCK_NAME, instanceId);
+            }
         } catch (final Exception e) {
             log.error("method=clearExpiredLocks Failed", e);
         }
@@ -0,0 +1,308 @@
+package fi.livi.digitraffic.common.service.locking;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import fi.livi.digitraffic.common.dao.LockLease;
+import fi.livi.digitraffic.common.util.StringUtil;
+
+/**
+ * Service for partitioning the work of a job to all nodes running it. The job is split to a fixed count of shards,
+ * and each node holds a fair share of them. For example, stations could be processed by the node holding the shard
+ * {@code stationId % shardCount}.
+ * <p>
+ * Each shard is a lock named {@code lockName#shard} in the same locking table as other locks. Nodes running the job
+ * also keep a membership lock {@code lockName#member#instanceId}, so the count of nodes can be read from the table.
+ * On every round {@link LockingService#rebalanceShards()} renews the membership and the held shards, tries to take
+ * free shards if this node holds less than its share, and releases shards over its share. The share is
+ * {@code floor(shardCount / memberCount)}, plus one for the nodes holding one of the {@code shardCount % memberCount}
+ * extra locks {@code lockName#extra#index}, so for example 10 shards are split 4/3/3 to three nodes. When a node
+ * joins, others release their surplus for it to take, and when a node leaves, its shards expire and are taken by
+ * the others. Shards and extra locks without an owner are searched with one query, and only those are tried, so
+ * the nodes don't contend for locks held by others. The lock name of a sharded service can't contain {@code #}, so
+ * its shard, member and extra locks can't be mixed with the locks of other services.
+ * <p>
+ * Like {@link CachedLockingService}, the held shards are only trusted until the leases returned by the db would expire.
+ * The service is inactive until {@link #activate()} or {@link #getOwnedShards()} is called.
+ */
+@SuppressWarnings("unused") // Public library API - methods are used by consumers of this library
+public class ShardedLockingService implements DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(ShardedLockingService.class);
+
+    private static final String SHARD_SEPARATOR = "#";
+    private static final String MEMBER_INFIX = "#member#";
+    private static final String EXTRA_INFIX = "#extra#";
+    private static final int NO_EXTRA = -1;
+
+    private final LockingService lockingService;
+    private final String lockName;
+    private final int shardCount;
+    private final int expirationSeconds;
+    private final String memberLockName;
+
+    /** Shards held after the latest round, null when none */
+    private volatile OwnedShards ownedShards;
+    /** Instance specific offset, so the instances don't all try the same free shards first */
+    private final int candidateOffset;
+    private volatile boolean active = false;
+
+    ShardedLockingService(final LockingService lockingService, final String lockName, final int shardCount,
+                          final int expirationSeconds) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive, was " + shardCount);
+        }
+        if (lockName.contains(SHARD_SEPARATOR)) {
+            throw new IllegalArgumentException("lockName can't contain " + SHARD_SEPARATOR + ", was " + lockName);
+        }
+        this.lockingService = lockingService;
+        this.lockName = lockName;
+        this.shardCount = shardCount;
+        this.expirationSeconds = expirationSeconds;
+        this.memberLockName = getMemberLockNamePrefix() + lockingService.getInstanceId();
+        this.candidateOffset = Math.floorMod(lockingService.getInstanceId().hashCode(), shardCount);
+        // Reserves the lock name, throws if it is already used
+        lockingService.register(this);
+        log.info("method=ShardedLockingService Created new {}", this);
+    }
+
+    /**
+     * If the service is not active, this will also activate it.
+     * @return Shards currently held by this instance
+     */
+    public Set<Integer> getOwnedShards() {
+        if (!active) {
+            activate();
+        }
+        return getHeldShards();
+    }
+
+    /**
+     * @param shard Shard number between 0 and shardCount - 1
+     * @return true if this instance holds the shard
+     */
+    public boolean ownsShard(final int shard) {
+        return getOwnedShards().contains(shard);
+    }
+
+    /**
+     * Activates the service to take part in sharing the shards.
+     */
+    public void activate() {
+        if (!active) {
+            active = true;
+            rebalance();
+        }
+    }
+
+    /**
+     * Stops taking part in sharing the shards and releases the held shards and membership.
+     * This is reactivated by calling activate() or getOwnedShards().
+     */
+    public void deactivate() {
+        active = false;
+        releaseAll();
+    }
+
+    public String getLockName() {
+        return lockName;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int getExpirationSeconds() {
+        return expirationSeconds;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Renews the membership and held shards, and acquires or releases shards to hold the fair share.
+     * Called periodically by {@link LockingService#rebalanceShards()}.
+     */
+    synchronized void rebalance() {
+        if (!active) {
+            return;
+        }
+
+        final Set<Integer> held = getHeldShards();
+        final int heldExtra = getHeldExtra();
+        final Map<String, Integer> expirationSecondsByLockName = new HashMap<>();
+        expirationSecondsByLockName.put(memberLockName, expirationSeconds);
+
+        final long requestStartNanos = System.nanoTime();
+        try {
+            final List<Integer> candidates = getFreeShardCandidates(held, getShare(getKnownMemberCount(), heldExtra));
+            final List<Integer> extraCandidates = heldExtra != NO_EXTRA ? List.of(heldExtra) : getFreeExtraCandidates();
+            Stream.concat(held.stream(), candidates.stream())
+                .forEach(shard -> expirationSecondsByLockName.put(getShardLockName(shard), expirationSeconds));
+            extraCandidates.forEach(extra -> expirationSecondsByLockName.put(getExtraLockName(extra), expirationSeconds));
+
+            final Map<String, LockLease> leases = lockingService.acquireLocks(expirationSecondsByLockName);
+            final int memberCount = Math.max(1, lockingService.countActiveLocks(getMemberLockNamePrefix()));
+
+            // Keep an extra lock only while there are as many extra shards, as the member count may have changed
+            final int extra = extraCandidates.stream()
+                .filter(index -> index < shardCount % memberCount && leases.containsKey(getExtraLockName(index)))
+                .findFirst()
+                .orElse(NO_EXTRA);
+            extraCandidates.stream()
+                .filter(index -> index != extra && leases.containsKey(getExtraLockName(index)))
+                .forEach(index -> lockingService.unlock(getExtraLockName(index)));
+            final int fairShare = getShare(memberCount, extra);
+
+            // Keep the shards held before, release newest ones over the share
+            final List<Integer> acquired = Stream.concat(held.stream().sorted(), candidates.stream())
+                .filter(shard -> leases.containsKey(getShardLockName(shard)))
+                .toList();
+            final List<Integer> surplus = acquired.subList(Math.min(fairShare, acquired.size()), acquired.size());
+            surplus.forEach(shard -> lockingService.unlock(getShardLockName(shard)));
+            final Set<Integer> kept = new TreeSet<>(acquired.subList(0, Math.min(fairShare, acquired.size())));
+
+            final long deadlineNanos = kept.stream()
+                .map(shard -> leases.get(getShardLockName(shard)))
+                .mapToLong(lease -> requestStartNanos + lease.getDuration().toNanos())
+                .min()
+                .orElse(requestStartNanos + TimeUnit.SECONDS.toNanos(expirationSeconds));
+            ownedShards = new OwnedShards(Collections.unmodifiableSet(kept), extra, memberCount, deadlineNanos);
+
+            if (!kept.equals(held)) {
+                log.info("method=rebalance Owned shards changed from {} to {} memberCount={} fairShare={} {}",
+                        held, kept, memberCount, fairShare, getLockInfoForLogging());
+            }
+        } catch (final Exception e) {
+            log.error("method=rebalance Failed for {}", getLockInfoForLogging(), e);
+            ownedShards = null;
+        }
+    }
+
+    public String getLockInfoForLogging() {
+        final OwnedShards current = ownedShards;
+        return StringUtil.format("lockName={} shardCount={} ownedShards={} isActive={} instanceId={}", lockName,
+                shardCount, current != null ? current.shards() : Set.of(), active, lockingService.getInstanceId());
+    }
+
+    @Override
+    public String toString() {
+        return StringUtil.format("{} {}", ShardedLockingService.class.getSimpleName(), getLockInfoForLogging());
+    }
+
+    @Override
+    public void destroy() {
+        log.info("method=destroy {}", getLockInfoForLogging());
+        active = false;
+        lockingService.unregister(this);
+        releaseAll();
+    }
+
+    private synchronized void releaseAll() {
+        final Set<Integer> held = getHeldShards();
+        final int heldExtra = getHeldExtra();
+        ownedShards = null;
+        try {
+            held.forEach(shard -> lockingService.unlock(getShardLockName(shard)));
+            if (heldExtra != NO_EXTRA) {
+                lockingService.unlock(getExtraLockName(heldExtra));
+            }
+            lockingService.unlock(memberLockName);
+        } catch (final Exception e) {
+            log.error("method=releaseAll Failed for {}", getLockInfoForLogging(), e);
+        }
+    }
+
+    private Set<Integer> getHeldShards() {
+        final OwnedShards current = ownedShards;
+        return current != null && System.nanoTime() - current.deadlineNanos() < 0 ? current.shards() : Set.of();
+    }
+
+    private int getHeldExtra() {
+        final OwnedShards current = ownedShards;
+        return current != null && System.nanoTime() - current.deadlineNanos() < 0 ? current.extra() : NO_EXTRA;
+    }
+
+    private int getKnownMemberCount() {
+        final OwnedShards current = ownedShards;
+        return current != null ? current.memberCount() : 1;
+    }
+
+    private int getShare(final int memberCount, final int extra) {
+        return shardCount / memberCount + (extra != NO_EXTRA ? 1 : 0);
+    }
+
+    /**
+     * Shards to try to acquire, at most as many as this instance is below its share. Only shards without an owner
+     * are tried, starting from an instance specific offset, so the instances don't all compete for the same shards.
+     * @return Shards not held by any instance
+     */
+    private List<Integer> getFreeShardCandidates(final Set<Integer> held, final int share) {
+        final int wanted = share - held.size();
+        if (wanted <= 0) {
+            return List.of();
+        }
+
+        final List<String> notHeld = IntStream.range(0, shardCount)
+            .filter(shard -> !held.contains(shard))
+            .mapToObj(this::getShardLockName)
+            .toList();
+        final Set<String> free = lockingService.findFreeLocks(notHeld);
+        return IntStream.range(0, shardCount)
+            .map(i -> (candidateOffset + i) % shardCount)
+            .filter(shard -> free.contains(getShardLockName(shard)))
+            .limit(wanted)
+            .boxed()
+            .toList();
+    }
+
+    /**
+     * @return One extra lock to try to acquire, if some extra lock is without an owner
+     */
+    private List<Integer> getFreeExtraCandidates() {
+        final int extraCount = shardCount % getKnownMemberCount();
+        if (extraCount == 0) {
+            return List.of();
+        }
+
+        final List<String> extras = IntStream.range(0, extraCount).mapToObj(this::getExtraLockName).toList();
+        final Set<String> free = lockingService.findFreeLocks(extras);
+        return IntStream.range(0, extraCount)
+            .map(i -> (candidateOffset + i) % extraCount)
+            .filter(extra -> free.contains(getExtraLockName(extra)))
+            .limit(1)
+            .boxed()
+            .toList();
+    }
+
+    private String getShardLockName(final int shard) {
+        return lockName + SHARD_SEPARATOR + shard;
+    }
+
+    private String getMemberLockNamePrefix() {
+        return lockName + MEMBER_INFIX;
+    }
+
+    private String getExtraLockName(final int extra) {
+        return lockName + EXTRA_INFIX + extra;
+    }
+
+    /**
+     * @param shards        Shards held
+     * @param extra         Index of the extra lock held, or {@link #NO_EXTRA}
+     * @param memberCount   Count of instances sharing the shards
+     * @param deadlineNanos {@link System#nanoTime()} after which the shards can't be trusted anymore
+     */
+    private record OwnedShards(Set<Integer> shards, int extra, int memberCount, long deadlineNanos) {}
+}
@@ -0,0 +1,37 @@
+package fi.livi.digitraffic.common.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+public class DataSourceUtil {
+    private static final Logger log = LoggerFactory.getLogger(DataSourceUtil.class);
+
+    protected DataSourceUtil() {
+        throw new AssertionError("The " + getClass().getSimpleName() + " class methods should be accessed statically");
+    }
+
+    /**
+     * Closes the physical connection and removes it from the pool, so the db ends the session and everything held
+     * by it, e.g. advisory locks or LISTEN registrations.
+     * @param dataSource Pool the connection was borrowed from
+     * @param pooled     Connection as returned by the pool
+     */
+    public static void evictConnection(final DataSource dataSource, final Connection pooled) {
+        try {
+            if (dataSource.isWrapperFor(HikariDataSource.class)) {
+                dataSource.unwrap(HikariDataSource.class).evictConnection(pooled);
+            } else {
+                pooled.abort(Runnable::run);
+            }
+        } catch (final SQLException e) {
+            log.error("method=evictConnection Failed to evict connection", e);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package fi.livi.digitraffic.common.aop;
+
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.livi.digitraffic.common.annotation.PerformanceMonitor;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PerformanceMonitorAspectTest {
+    private static final String RESULT = "result";
+
+    @Test
+    public void zeroLimitsAreNotUsedAsSlo() throws Throwable {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final PerformanceMonitorAspect aspect = new PerformanceMonitorAspect(registry, 10);
+
+        Assertions.assertEquals(RESULT, aspect.monitor(mockJoinPoint("zeroLimits")));
+        Assertions.assertEquals(1, registry.get(PerformanceMonitorAspect.METRIC_NAME)
+            .tag(PerformanceMonitorAspect.TAG_METHOD, "zeroLimits")
+            .timer()
+            .count());
+    }
+
+    @Test
+    public void failingTimerDoesNotReplaceResult() throws Throwable {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        registry.config().meterFilter(new MeterFilter() {
+            @Override
+            public Meter.Id map(final Meter.Id id) {
+                throw new IllegalStateException("Registry failed");
+            }
+        });
+        final PerformanceMonitorAspect aspect = new PerformanceMonitorAspect(registry, 10);
+
+        Assertions.assertEquals(RESULT, aspect.monitor(mockJoinPoint("defaultLimits")));
+        Assertions.assertEquals(RESULT, aspect.monitor(mockJoinPoint("defaultLimits")));
+        Assertions.assertTrue(registry.getMeters().isEmpty());
+    }
+
+    @Test
+    public void fastCallIsNotRendered() throws Throwable {
+        final PerformanceMonitorAspect aspect = new PerformanceMonitorAspect();
+        final ProceedingJoinPoint pjp = mockJoinPoint("zeroLimits");
+        final MethodSignature signature = (MethodSignature) pjp.getSignature();
+        // First call of the mock may be slow
+        aspect.monitor(pjp);
+        clearInvocations(pjp, signature);
+
+        Assertions.assertEquals(RESULT, aspect.monitor(pjp));
+
+        // Sub-millisecond call skips resolving the method and rendering the arguments, even if all limits are zero
+        verify(signature, never()).getMethod();
+        verify(pjp, never()).getArgs();
+    }
+
+    @Test
+    public void slowCallIsRendered() throws Throwable {
+        final PerformanceMonitorAspect aspect = new PerformanceMonitorAspect();
+        final ProceedingJoinPoint pjp = mockJoinPoint("zeroLimits");
+        final MethodSignature signature = (MethodSignature) pjp.getSignature();
+        when(pjp.proceed()).thenAnswer(invocation -> {
+            Thread.sleep(5);
+            return RESULT;
+        });
+
+        Assertions.assertEquals(RESULT, aspect.monitor(pjp));
+
+        verify(signature, atLeastOnce()).getMethod();
+        verify(pjp).getArgs();
+    }
+
+    @Test
+    public void buildValueToStringNested() {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("key", new int[] { 1, 2 });
+        map.put("null", null);
+
+        Assertions.assertEquals("[1;[a;[key=[1;2];null=null]]]", render(new Object[] { 1, List.of("a", map) }));
+    }
+
+    @Test
+    public void buildValueToStringPrimitiveArrays() {
+        Assertions.assertEquals("[1;2;3;4;5]", render(new int[] { 1, 2, 3, 4, 5, 6, 7 }));
+        Assertions.assertEquals("[1;2]", render(new long[] { 1, 2 }));
+        Assertions.assertEquals("[1.5;2.0]", render(new double[] { 1.5, 2 }));
+        Assertions.assertEquals("[true;false]", render(new boolean[] { true, false }));
+        Assertions.assertEquals("[a;b]", render(new char[] { 'a', 'b' }));
+        Assertions.assertEquals("[-1;1]", render(new byte[] { -1, 1 }));
+        Assertions.assertEquals("[]", render(new short[0]));
+    }
+
+    @Test
+    public void buildValueToStringHugeCollection() {
+        // Only the first elements are iterated, the collection is never copied
+        final AbstractCollection<Integer> huge = new AbstractCollection<>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public Integer next() {
+                        return next++;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public Object[] toArray() {
+                throw new UnsupportedOperationException("Too big to copy");
+            }
+        };
+
+        Assertions.assertEquals("[0;1;2;3;4]", render(huge));
+    }
+
+    @Test
+    public void buildValueToStringStopsAtMaxLength() {
+        final StringBuilder builder = new StringBuilder("prefix ");
+        PerformanceMonitorAspect.buildValueToString(builder, "x".repeat(2000), 100);
+        Assertions.assertEquals(100, builder.length());
+
+        // Only the closing brackets may exceed the limit
+        final StringBuilder nested = new StringBuilder();
+        PerformanceMonitorAspect.buildValueToString(nested, List.of(List.of("x".repeat(200)), "not rendered"), 50);
+        Assertions.assertEquals("[[" + "x".repeat(48) + "]]", nested.toString());
+
+        // Nothing is appended to a full builder
+        final StringBuilder full = new StringBuilder("x".repeat(10));
+        PerformanceMonitorAspect.buildValueToString(full, List.of(1, 2), 10);
+        Assertions.assertEquals("x".repeat(10), full.toString());
+    }
+
+    @PerformanceMonitor(maxErrorExcecutionTime = 0, maxWarnExcecutionTime = 0, maxInfoExcecutionTime = 0)
+    public String zeroLimits() {
+        return RESULT;
+    }
+
+    @PerformanceMonitor
+    public String defaultLimits() {
+        return RESULT;
+    }
+
+    private static String render(final Object value) {
+        final StringBuilder builder = new StringBuilder();
+        PerformanceMonitorAspect.buildValueToString(builder, value);
+        return builder.toString();
+    }
+
+    private static ProceedingJoinPoint mockJoinPoint(final String methodName) throws Throwable {
+        final MethodSignature signature = mock(MethodSignature.class);
+        when(signature.getMethod()).thenReturn(PerformanceMonitorAspectTest.class.getMethod(methodName));
+        when(signature.getName()).thenReturn(methodName);
+        doReturn(PerformanceMonitorAspectTest.class).when(signature).getDeclaringType();
+
+        final ProceedingJoinPoint pjp = mock(ProceedingJoinPoint.class);
+        when(pjp.getSignature()).thenReturn(signature);
+        when(pjp.proceed()).thenReturn(RESULT);
+        return pjp;
+    }
+}
@@ -0,0 +1,118 @@
+package fi.livi.digitraffic.common.aop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+public class TransactionLoggerAspectTest {
+    private final TransactionLoggerAspect aspect = new TransactionLoggerAspect(Integer.MAX_VALUE);
+
+    @Test
+    public void virtualThreadIsRegisteredOnlyInOutermostTransaction() throws Throwable {
+        final List<String> innerActive = new ArrayList<>();
+        final List<Boolean> registered = new ArrayList<>();
+
+        final ProceedingJoinPoint inner = mockJoinPoint("inner", () -> {
+            registered.add(isRegistered(Thread.currentThread()));
+            innerActive.addAll(getActiveTransactions());
+            return null;
+        });
+        final ProceedingJoinPoint outer = mockJoinPoint("outer", () -> {
+            registered.add(isRegistered(Thread.currentThread()));
+            aspect.monitor(inner);
+            // Ending the nested transaction keeps the thread registered
+            registered.add(isRegistered(Thread.currentThread()));
+            return null;
+        });
+
+        final Thread thread = Thread.ofVirtual().unstarted(() -> {
+            try {
+                aspect.monitor(outer);
+            } catch (final Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertFalse(isRegistered(thread));
+        thread.start();
+        thread.join();
+
+        Assertions.assertEquals(List.of(true, true, true), registered);
+        Assertions.assertTrue(innerActive.stream()
+            .anyMatch(line -> line.contains("activeTransaction=TransactionLoggerAspectTest.outer ")), innerActive.toString());
+        Assertions.assertTrue(innerActive.stream()
+            .anyMatch(line -> line.contains("activeTransaction=TransactionLoggerAspectTest.inner ")), innerActive.toString());
+        Assertions.assertFalse(isRegistered(thread));
+    }
+
+    @Test
+    public void deadPlatformThreadsArePruned() throws Throwable {
+        final Thread first = runTransactionInPlatformThread();
+        Assertions.assertFalse(first.isAlive());
+        Assertions.assertTrue(isRegistered(first));
+
+        // Registration of new threads prunes the dead ones once in a while, without logActiveTransactions
+        final List<Thread> others = new ArrayList<>();
+        for (int i = 0; i < 1024; i++) {
+            others.add(runTransactionInPlatformThread());
+        }
+
+        Assertions.assertFalse(isRegistered(first));
+        Assertions.assertTrue(others.stream().filter(TransactionLoggerAspectTest::isRegistered).count() < others.size());
+    }
+
+    private Thread runTransactionInPlatformThread() throws Throwable {
+        final ProceedingJoinPoint pjp = mockJoinPoint("platform", () -> null);
+        final Thread thread = Thread.ofPlatform().start(() -> {
+            try {
+                aspect.monitor(pjp);
+            } catch (final Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.join();
+        return thread;
+    }
+
+    private static boolean isRegistered(final Thread thread) {
+        return TransactionLoggerAspect.getRegisteredThreads().contains(thread);
+    }
+
+    private static List<String> getActiveTransactions() {
+        final List<String> lines = new CopyOnWriteArrayList<>();
+        final Logger logger = mock(Logger.class);
+        doAnswer(invocation -> lines.add(invocation.getArgument(1, String.class)))
+            .when(logger).info(anyString(), any(Object.class));
+        TransactionLoggerAspect.logActiveTransactions(logger);
+        return lines;
+    }
+
+    private static ProceedingJoinPoint mockJoinPoint(final String methodName, final TransactionBody body) throws Throwable {
+        final MethodSignature signature = mock(MethodSignature.class);
+        when(signature.getName()).thenReturn(methodName);
+        doReturn(TransactionLoggerAspectTest.class).when(signature).getDeclaringType();
+
+        final ProceedingJoinPoint pjp = mock(ProceedingJoinPoint.class);
+        when(pjp.getSignature()).thenReturn(signature);
+        when(pjp.getArgs()).thenReturn(new Object[] { methodName });
+        when(pjp.proceed()).thenAnswer(invocation -> body.call());
+        return pjp;
+    }
+
+    private interface TransactionBody {
+        Object call() throws Throwable;
+    }
+}
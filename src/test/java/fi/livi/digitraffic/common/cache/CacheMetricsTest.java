@@ -0,0 +1,28 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class CacheMetricsTest {
+    @Test
+    public void testMetrics() {
+        final var registry = new SimpleMeterRegistry();
+        final var cache = ExpiringCache.<Integer>builder(Duration.ofMinutes(1))
+            .metrics(registry, "test")
+            .build();
+
+        cache.get("a", () -> new ExpiringCache.CacheResult<>(1));
+        cache.get("a", () -> new ExpiringCache.CacheResult<>(2));
+        cache.get("b", () -> new ExpiringCache.CacheResult<>(false, 3));
+
+        Assertions.assertEquals(1, registry.get(CacheMetrics.CACHE_GETS).tag(CacheMetrics.TAG_RESULT, "hit").counter().count());
+        Assertions.assertEquals(2, registry.get(CacheMetrics.CACHE_GETS).tag(CacheMetrics.TAG_RESULT, "miss").counter().count());
+        Assertions.assertEquals(1, registry.get(CacheMetrics.CACHE_UNCACHEABLE).counter().count());
+        Assertions.assertEquals(2, registry.get(CacheMetrics.CACHE_LOAD).tag(CacheMetrics.TAG_RESULT, "success").timer().count());
+        Assertions.assertEquals(1, registry.get(CacheMetrics.CACHE_SIZE).tag(CacheMetrics.TAG_CACHE, "test").gauge().value());
+    }
+}
@@ -0,0 +1,70 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class EnumExpiringCacheTest {
+    private enum TestKey { A, B }
+
+    @Test
+    public void testCache() {
+        final var cache = new EnumExpiringCache<TestKey, String>(TestKey.class, Duration.ofMinutes(1));
+
+        Assertions.assertEquals("A", cache.get(TestKey.A, key -> new ExpiringCache.CacheResult<>(key.name())));
+        Assertions.assertEquals("A", cache.get(TestKey.A, key -> new ExpiringCache.CacheResult<>("other")));
+        Assertions.assertEquals("B", cache.get(TestKey.B, key -> new ExpiringCache.CacheResult<>(key.name())));
+
+        cache.invalidate(TestKey.A);
+        Assertions.assertEquals("other", cache.get(TestKey.A, key -> new ExpiringCache.CacheResult<>("other")));
+    }
+
+    @Test
+    public void testNotCacheable() {
+        final var cache = new EnumExpiringCache<TestKey, Integer>(TestKey.class, Duration.ofMinutes(1));
+
+        Assertions.assertEquals(1, cache.get(TestKey.A, key -> new ExpiringCache.CacheResult<>(false, 1)));
+        Assertions.assertEquals(2, cache.get(TestKey.A, key -> new ExpiringCache.CacheResult<>(false, 2)));
+    }
+
+    @Test
+    public void testInvalidateDoesNotWaitForLoad() throws Exception {
+        final var cache = new EnumExpiringCache<TestKey, String>(TestKey.class, Duration.ofMinutes(1));
+        final var loadStarted = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            final Future<String> loading = executor.submit(() -> cache.get(TestKey.A, key -> {
+                loadStarted.countDown();
+                await(release);
+                return new ExpiringCache.CacheResult<>("loaded");
+            }));
+            Assertions.assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+
+            // returns while the load is still running
+            cache.invalidateAll();
+            release.countDown();
+
+            // value loaded before the invalidation is returned to the loader, but not cached
+            Assertions.assertEquals("loaded", loading.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("new", cache.get(TestKey.A, key -> new ExpiringCache.CacheResult<>("new")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,7 +4,23 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class ExpiringCacheTest {
     private class TestSupplier implements Supplier<ExpiringCache.CacheResult<Integer>> {
@@ -49,4 +65,418 @@ public class ExpiringCacheTest {
         Assertions.assertEquals(1, cache.get(supplier));
         Assertions.assertEquals(2, cache.get(supplier));
     }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var callCount = new AtomicInteger();
+        final var loadStarted = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final var secondThread = new AtomicReference<Thread>();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            final Supplier<ExpiringCache.CacheResult<Integer>> slowSupplier = () -> {
+                callCount.incrementAndGet();
+                loadStarted.countDown();
+                awaitQuietly(release);
+                return new ExpiringCache.CacheResult<>(callCount.get());
+            };
+            final Future<Integer> first = executor.submit(() -> cache.get("key", slowSupplier));
+            awaitQuietly(loadStarted);
+            final Future<Integer> second = executor.submit(() -> {
+                secondThread.set(Thread.currentThread());
+                return cache.get("key", slowSupplier);
+            });
+
+            // second call is blocked inside get() while the first load is still running, so it can't be a cache hit
+            awaitBlocked(secondThread);
+
+            // other keys are not blocked by the pending load
+            Assertions.assertEquals(10, cache.get("other", () -> new ExpiringCache.CacheResult<>(10)));
+
+            release.countDown();
+            Assertions.assertEquals(1, first.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, second.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, callCount.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+
+        Assertions.assertThrows(IllegalStateException.class, () -> cache.get(() -> {
+            throw new IllegalStateException("fail");
+        }));
+        Assertions.assertEquals(1, cache.get(new TestSupplier(true)));
+    }
+
+    @Test
+    public void testStaleValueReturnedWhileRefreshing() throws InterruptedException {
+        final var supplier = new TestSupplier(true);
+        // refresh in the calling thread to keep the test deterministic
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1), Duration.ofMillis(50), Runnable::run);
+
+        Assertions.assertEquals(1, cache.get(supplier));
+        Thread.sleep(100);
+
+        // stale value is returned and refreshed value is served after that
+        Assertions.assertEquals(1, cache.get(supplier));
+        Assertions.assertEquals(2, cache.get(supplier));
+        Assertions.assertEquals(2, supplier.callCount);
+    }
+
+    @Test
+    public void testNotCacheableRefreshKeepsStaleValue() throws InterruptedException {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1), Duration.ofMillis(50), Runnable::run);
+
+        Assertions.assertEquals(1, cache.get(() -> new ExpiringCache.CacheResult<>(1)));
+        Thread.sleep(100);
+
+        Assertions.assertEquals(1, cache.get(() -> new ExpiringCache.CacheResult<>(false, 2)));
+        Assertions.assertEquals(1, cache.get(() -> new ExpiringCache.CacheResult<>(false, 3)));
+    }
+
+    @Test
+    public void testMaximumSizeEvictsLeastRecentlyUsed() {
+        final var cache = ExpiringCache.<Integer>builder(Duration.ofMinutes(1)).maximumSize(2).build();
+
+        cache.get("a", () -> new ExpiringCache.CacheResult<>(1));
+        cache.get("b", () -> new ExpiringCache.CacheResult<>(2));
+        // access a, so b is the least recently used
+        cache.get("a", () -> new ExpiringCache.CacheResult<>(-1));
+        cache.get("c", () -> new ExpiringCache.CacheResult<>(3));
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(1, cache.get("a", () -> new ExpiringCache.CacheResult<>(-1)));
+        Assertions.assertEquals(3, cache.get("c", () -> new ExpiringCache.CacheResult<>(-1)));
+        Assertions.assertEquals(-2, cache.get("b", () -> new ExpiringCache.CacheResult<>(-2)));
+    }
+
+    @Test
+    public void testEvictionFreesTenthOfMaximumSize() {
+        final var cache = ExpiringCache.<Integer>builder(Duration.ofMinutes(1)).maximumSize(100).build();
+
+        for(int i = 0; i < 100; i++) {
+            final int value = i;
+            cache.get("key" + i, () -> new ExpiringCache.CacheResult<>(value));
+        }
+        // access the oldest key, so it is not evicted
+        cache.get("key0", () -> new ExpiringCache.CacheResult<>(-1));
+        Assertions.assertEquals(100, cache.size());
+
+        cache.get("key100", () -> new ExpiringCache.CacheResult<>(100));
+        Assertions.assertEquals(90, cache.size());
+        Assertions.assertEquals(0, cache.get("key0", () -> new ExpiringCache.CacheResult<>(-1)));
+        Assertions.assertEquals(100, cache.get("key100", () -> new ExpiringCache.CacheResult<>(-1)));
+        // least recently used were evicted
+        Assertions.assertEquals(-1, cache.get("key1", () -> new ExpiringCache.CacheResult<>(false, -1)));
+        Assertions.assertEquals(-1, cache.get("key11", () -> new ExpiringCache.CacheResult<>(false, -1)));
+        Assertions.assertEquals(12, cache.get("key12", () -> new ExpiringCache.CacheResult<>(-1)));
+
+        // next puts fit without eviction
+        for(int i = 101; i < 111; i++) {
+            final int value = i;
+            cache.get("key" + i, () -> new ExpiringCache.CacheResult<>(value));
+        }
+        Assertions.assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void testMaximumWeight() {
+        final var cache = ExpiringCache.<String>builder(Duration.ofMinutes(1))
+            .maximumWeight(10, String::length)
+            .build();
+
+        cache.get("a", () -> new ExpiringCache.CacheResult<>("12345"));
+        cache.get("b", () -> new ExpiringCache.CacheResult<>("12345"));
+        Assertions.assertEquals(2, cache.size());
+
+        cache.get("c", () -> new ExpiringCache.CacheResult<>("1"));
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals("new", cache.get("a", () -> new ExpiringCache.CacheResult<>("new")));
+    }
+
+    @Test
+    public void testSweeperRemovesExpiredEntries() throws InterruptedException {
+        final var cache = ExpiringCache.<Integer>builder(Duration.ofMillis(20))
+            .sweepInterval(Duration.ofMillis(10))
+            .build();
+
+        cache.get("a", () -> new ExpiringCache.CacheResult<>(1));
+        cache.get("b", () -> new ExpiringCache.CacheResult<>(2));
+        Assertions.assertEquals(2, cache.size());
+
+        Thread.sleep(200);
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testAsyncWaitersSharePendingLoad() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var callCount = new AtomicInteger();
+        final var pending = new CompletableFuture<ExpiringCache.CacheResult<Integer>>();
+        final Supplier<CompletableFuture<ExpiringCache.CacheResult<Integer>>> supplier = () -> {
+            callCount.incrementAndGet();
+            return pending;
+        };
+
+        final CompletableFuture<Integer> first = cache.getAsync("key", supplier);
+        final CompletableFuture<Integer> second = cache.getAsync("key", supplier);
+        Assertions.assertFalse(first.isDone());
+
+        pending.complete(new ExpiringCache.CacheResult<>(1));
+        Assertions.assertEquals(1, first.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, second.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, callCount.get());
+
+        // now from the cache
+        Assertions.assertEquals(1, cache.getAsync("key", supplier).get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, cache.get("key", () -> new ExpiringCache.CacheResult<>(2)));
+    }
+
+    @Test
+    public void testAsyncFailureIsNotCached() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+
+        final CompletableFuture<Integer> failed =
+            cache.getAsync("key", () -> CompletableFuture.failedFuture(new IllegalStateException("fail")));
+        final ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof IllegalStateException);
+
+        Assertions.assertEquals(2, cache.getAsync("key", () ->
+            CompletableFuture.completedFuture(new ExpiringCache.CacheResult<>(false, 2))).get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(3, cache.getAsync("key", () ->
+            CompletableFuture.completedFuture(new ExpiringCache.CacheResult<>(3))).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+
+        final CompletableFuture<Integer> timedOut =
+            cache.getAsync("key", CompletableFuture::new, Duration.ofMillis(50));
+        final ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> timedOut.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof TimeoutException);
+
+        // next call loads again
+        Assertions.assertEquals(1, cache.getAsync("key", () ->
+            CompletableFuture.completedFuture(new ExpiringCache.CacheResult<>(1))).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAsyncTimeoutAppliesWhenJoiningPendingLoad() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var pending = new CompletableFuture<ExpiringCache.CacheResult<Integer>>();
+
+        final CompletableFuture<Integer> owner = cache.getAsync("key", () -> pending);
+        final CompletableFuture<Integer> joined =
+            cache.getAsync("key", () -> CompletableFuture.completedFuture(new ExpiringCache.CacheResult<>(-1)),
+                Duration.ofMillis(50));
+
+        final ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> joined.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof TimeoutException);
+
+        // timeout of the joined caller doesn't fail the pending load
+        pending.complete(new ExpiringCache.CacheResult<>(1));
+        Assertions.assertEquals(1, owner.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testGetAllLoadsMissingKeysInOneCall() {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final List<Set<String>> loadedKeys = new ArrayList<>();
+        final Function<Set<String>, Map<String, ExpiringCache.CacheResult<Integer>>> bulkLoader = keys -> {
+            loadedKeys.add(keys);
+            return keys.stream()
+                .filter(key -> !key.equals("missing"))
+                .collect(Collectors.toMap(key -> key, key -> new ExpiringCache.CacheResult<>(!key.equals("c"), key.length())));
+        };
+        cache.get("a", () -> new ExpiringCache.CacheResult<>(10));
+
+        final Map<String, Integer> result = cache.getAll(List.of("a", "bb", "c", "missing"), bulkLoader);
+
+        Assertions.assertEquals(List.of("a", "bb", "c"), List.copyOf(result.keySet()));
+        Assertions.assertEquals(10, result.get("a"));
+        Assertions.assertEquals(2, result.get("bb"));
+        Assertions.assertEquals(List.of(Set.of("bb", "c", "missing")), loadedKeys);
+
+        // bb is cached, non-cacheable c and missing are loaded again
+        cache.getAll(List.of("a", "bb", "c", "missing"), bulkLoader);
+        Assertions.assertEquals(Set.of("c", "missing"), loadedKeys.get(1));
+    }
+
+    @Test
+    public void testGetAllSkipsMissingKeysOfOverlappingLoad() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var loadStarted = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final var secondThread = new AtomicReference<Thread>();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            // first load returns only a
+            final Future<Map<String, Integer>> first = executor.submit(() -> cache.getAll(List.of("a", "missing"), keys -> {
+                loadStarted.countDown();
+                awaitQuietly(release);
+                return Map.of("a", new ExpiringCache.CacheResult<>(1));
+            }));
+            awaitQuietly(loadStarted);
+
+            // second load waits for both keys of the first one
+            final Future<Map<String, Integer>> second = executor.submit(() -> {
+                secondThread.set(Thread.currentThread());
+                return cache.getAll(List.of("a", "missing"), keys -> Map.of());
+            });
+            awaitBlocked(secondThread);
+            release.countDown();
+
+            Assertions.assertEquals(Map.of("a", 1), first.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(Map.of("a", 1), second.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGetLoadsKeyMissingFromOverlappingBulkLoad() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var loadStarted = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final var getThread = new AtomicReference<Thread>();
+        final var asyncThread = new AtomicReference<Thread>();
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try {
+            // bulk load returns only a
+            final Future<Map<String, Integer>> bulk = executor.submit(() -> cache.getAll(List.of("a", "missing"), keys -> {
+                loadStarted.countDown();
+                awaitQuietly(release);
+                return Map.of("a", new ExpiringCache.CacheResult<>(1));
+            }));
+            awaitQuietly(loadStarted);
+
+            // get and getAsync join the bulk load, and then load the missing key themselves
+            final Future<Integer> get = executor.submit(() -> {
+                getThread.set(Thread.currentThread());
+                return cache.get("missing", () -> new ExpiringCache.CacheResult<>(2));
+            });
+            final Future<Integer> getAsync = executor.submit(() -> {
+                asyncThread.set(Thread.currentThread());
+                return cache.getAsync("missing", () -> CompletableFuture.completedFuture(new ExpiringCache.CacheResult<>(3)))
+                    .get(5, TimeUnit.SECONDS);
+            });
+            awaitBlocked(getThread);
+            awaitBlocked(asyncThread);
+            release.countDown();
+
+            Assertions.assertEquals(Map.of("a", 1), bulk.get(5, TimeUnit.SECONDS));
+            // both get a value, their own or the one loaded by the other
+            Assertions.assertTrue(Set.of(2, 3).contains(get.get(5, TimeUnit.SECONDS)));
+            Assertions.assertTrue(Set.of(2, 3).contains(getAsync.get(5, TimeUnit.SECONDS)));
+            Assertions.assertTrue(Set.of(2, 3).contains(cache.get("missing", () -> new ExpiringCache.CacheResult<>(4))));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidationDuringLoadIsNotCached() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var loadStarted = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            final Future<Integer> first = executor.submit(() -> cache.get("a", () -> {
+                loadStarted.countDown();
+                awaitQuietly(release);
+                return new ExpiringCache.CacheResult<>(1);
+            }));
+            awaitQuietly(loadStarted);
+
+            cache.invalidate("a");
+            // the invalidated load is not joined, but the key is loaded again
+            Assertions.assertEquals(2, cache.get("a", () -> new ExpiringCache.CacheResult<>(2)));
+            release.countDown();
+
+            Assertions.assertEquals(1, first.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, cache.get("a", () -> new ExpiringCache.CacheResult<>(3)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidationOfOtherKeyKeepsLoad() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var loadStarted = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            final Future<Integer> first = executor.submit(() -> cache.get("a", () -> {
+                loadStarted.countDown();
+                awaitQuietly(release);
+                return new ExpiringCache.CacheResult<>(1);
+            }));
+            awaitQuietly(loadStarted);
+
+            cache.invalidate("b");
+            release.countDown();
+
+            Assertions.assertEquals(1, first.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, cache.get("a", () -> new ExpiringCache.CacheResult<>(2)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidateAllDuringLoadIsNotCached() throws Exception {
+        final var cache = new ExpiringCache<Integer>(Duration.ofMinutes(1));
+        final var loadStarted = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            final Future<Map<String, Integer>> first = executor.submit(() -> cache.getAll(List.of("a", "b"), keys -> {
+                loadStarted.countDown();
+                awaitQuietly(release);
+                return Map.of("a", new ExpiringCache.CacheResult<>(1), "b", new ExpiringCache.CacheResult<>(1));
+            }));
+            awaitQuietly(loadStarted);
+
+            cache.invalidateAll();
+            release.countDown();
+
+            Assertions.assertEquals(Map.of("a", 1, "b", 1), first.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(0, cache.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitBlocked(final AtomicReference<Thread> threadReference) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() - deadline < 0) {
+            final Thread thread = threadReference.get();
+            if (thread != null && (thread.getState() == Thread.State.WAITING || thread.getState() == Thread.State.TIMED_WAITING)) {
+                return;
+            }
+            Thread.sleep(1);
+        }
+        Assertions.fail("Thread did not block");
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
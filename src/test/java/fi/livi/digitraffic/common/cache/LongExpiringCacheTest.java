@@ -0,0 +1,78 @@
+package fi.livi.digitraffic.common.cache;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LongExpiringCacheTest {
+    @Test
+    public void testCache() {
+        final var callCount = new AtomicInteger();
+        final var cache = new LongExpiringCache<Integer>(Duration.ofMinutes(1));
+
+        Assertions.assertEquals(1, cache.get(1L, key -> new ExpiringCache.CacheResult<>(callCount.incrementAndGet())));
+        Assertions.assertEquals(1, cache.get(1L, key -> new ExpiringCache.CacheResult<>(callCount.incrementAndGet())));
+        // int keys are widened to long
+        Assertions.assertEquals(1, cache.get(1, key -> new ExpiringCache.CacheResult<>(callCount.incrementAndGet())));
+    }
+
+    @Test
+    public void testCacheWithoutTTL() {
+        final var cache = new LongExpiringCache<Long>(Duration.ofMinutes(0));
+
+        Assertions.assertEquals(1L, cache.get(1L, key -> new ExpiringCache.CacheResult<>(key)));
+        Assertions.assertEquals(2L, cache.get(1L, key -> new ExpiringCache.CacheResult<>(key + 1)));
+    }
+
+    @Test
+    public void testNotCacheable() {
+        final var cache = new LongExpiringCache<Long>(Duration.ofMinutes(1));
+
+        Assertions.assertEquals(1L, cache.get(1L, key -> new ExpiringCache.CacheResult<>(false, key)));
+        Assertions.assertEquals(2L, cache.get(1L, key -> new ExpiringCache.CacheResult<>(false, key + 1)));
+    }
+
+    @Test
+    public void testManyKeys() {
+        final var cache = new LongExpiringCache<Long>(Duration.ofMinutes(1));
+
+        for(long key = 0; key < 1000; key++) {
+            cache.get(key * 31, k -> new ExpiringCache.CacheResult<>(k));
+        }
+
+        Assertions.assertEquals(1000, cache.size());
+        for(long key = 0; key < 1000; key++) {
+            Assertions.assertEquals(key * 31, cache.get(key * 31, k -> new ExpiringCache.CacheResult<>(-1L)));
+        }
+
+        cache.invalidateAll();
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemoveExpired() throws InterruptedException {
+        final var cache = new LongExpiringCache<Long>(Duration.ofMillis(50));
+
+        for(long key = 0; key < 100; key++) {
+            cache.get(key, k -> new ExpiringCache.CacheResult<>(k));
+        }
+        Thread.sleep(100);
+        // refresh some keys, so they are kept
+        for(long key = 0; key < 10; key++) {
+            cache.get(key, k -> new ExpiringCache.CacheResult<>(k + 1));
+        }
+        cache.invalidate(0L);
+
+        Assertions.assertEquals(91, cache.removeExpired());
+        Assertions.assertEquals(9, cache.size());
+        Assertions.assertEquals(0, cache.removeExpired());
+        for(long key = 1; key < 10; key++) {
+            Assertions.assertEquals(key + 1, cache.get(key, k -> new ExpiringCache.CacheResult<>(-1L)));
+        }
+        // dropped keys are loaded again
+        Assertions.assertEquals(-1L, cache.get(50L, k -> new ExpiringCache.CacheResult<>(-1L)));
+        Assertions.assertEquals(10, cache.size());
+    }
+}
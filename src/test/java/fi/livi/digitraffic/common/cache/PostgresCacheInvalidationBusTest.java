@@ -0,0 +1,143 @@
+package fi.livi.digitraffic.common.cache;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+public class PostgresCacheInvalidationBusTest {
+    private static final String CHANNEL = "cache_invalidation";
+
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PGConnection pgConnection;
+
+    @Mock
+    private Statement statement;
+
+    private PostgresCacheInvalidationBus bus;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        MockitoAnnotations.openMocks(this);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.createStatement()).thenReturn(statement);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+
+        bus = new PostgresCacheInvalidationBus(new NamedParameterJdbcTemplate(dataSource), CHANNEL);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        bus.close();
+    }
+
+    @Test
+    public void invalidChannel() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> new PostgresCacheInvalidationBus(new NamedParameterJdbcTemplate(dataSource), "drop table"));
+    }
+
+    @Test
+    public void notificationsAreDelivered() throws SQLException {
+        final PGNotification notification = mock(PGNotification.class);
+        when(notification.getParameter()).thenReturn("payload");
+        when(pgConnection.getNotifications(anyInt())).thenReturn(new PGNotification[] { notification }, (PGNotification[]) null);
+
+        bus.subscribe(received::add);
+
+        verify(statement, timeout(5000)).execute("LISTEN " + CHANNEL);
+        verify(pgConnection, timeout(5000).atLeast(2)).getNotifications(anyInt());
+        Assertions.assertEquals(List.of("payload"), received);
+    }
+
+    @Test
+    public void closeStopsListeningBeforeReturningConnection() throws SQLException {
+        bus.subscribe(received::add);
+        verify(pgConnection, timeout(5000).atLeastOnce()).getNotifications(anyInt());
+
+        bus.close();
+
+        final InOrder inOrder = inOrder(statement, connection);
+        inOrder.verify(statement).execute("LISTEN " + CHANNEL);
+        inOrder.verify(statement).execute("UNLISTEN *");
+        inOrder.verify(connection).close();
+    }
+
+    @Test
+    public void failedListeningReturnsConnectionWithoutListening() throws SQLException {
+        when(pgConnection.getNotifications(anyInt())).thenThrow(new SQLException("Connection failed"));
+
+        bus.subscribe(received::add);
+
+        verify(connection, timeout(5000)).close();
+        final InOrder inOrder = inOrder(statement, connection);
+        inOrder.verify(statement).execute("UNLISTEN *");
+        inOrder.verify(connection).close();
+    }
+
+    @Test
+    public void connectionIsEvictedWhenUnlistenFails() throws SQLException {
+        when(statement.execute("UNLISTEN *")).thenThrow(new SQLException("Connection failed"));
+
+        bus.subscribe(received::add);
+        verify(pgConnection, timeout(5000).atLeastOnce()).getNotifications(anyInt());
+        bus.close();
+
+        // plain data source is not a pool, so the connection is aborted
+        verify(connection).abort(any());
+        verify(connection).close();
+    }
+
+    @Test
+    public void closeEvictsConnectionOfStuckListener() throws SQLException {
+        final AtomicBoolean respond = new AtomicBoolean();
+        when(pgConnection.getNotifications(anyInt())).thenAnswer(invocation -> {
+            // db doesn't respond, and interrupt doesn't help
+            while (!respond.get()) {
+                LockSupport.parkNanos(1_000_000);
+            }
+            return null;
+        });
+
+        try {
+            bus.subscribe(received::add);
+            verify(pgConnection, timeout(5000)).getNotifications(anyInt());
+            bus.close();
+
+            verify(connection).abort(any());
+        } finally {
+            respond.set(true);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package fi.livi.digitraffic.common.dao;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.livi.digitraffic.test.util.MutableClock;
+
+public class InMemoryLockingDaoTest {
+    private static final String LOCK = "lock";
+    private static final String INSTANCE_1 = "instance1";
+    private static final String INSTANCE_2 = "instance2";
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-01-01T00:00:00Z"));
+    private final InMemoryLockingDao dao = new InMemoryLockingDao(clock);
+
+    @Test
+    public void acquireLock() {
+        final Optional<LockLease> lease = dao.tryAcquireLock(LOCK, INSTANCE_1, 3);
+
+        Assertions.assertTrue(lease.isPresent());
+        Assertions.assertEquals(clock.instant(), lease.get().lockLocked());
+        Assertions.assertEquals(clock.instant().plusSeconds(3), lease.get().lockExpires());
+        Assertions.assertTrue(dao.hasLock(LOCK, INSTANCE_1));
+        Assertions.assertFalse(dao.hasLock(LOCK, INSTANCE_2));
+    }
+
+    @Test
+    public void lockedByOtherInstance() {
+        Assertions.assertTrue(dao.acquireLock(LOCK, INSTANCE_1, 3));
+        Assertions.assertFalse(dao.acquireLock(LOCK, INSTANCE_2, 3));
+
+        // Renewal by the holder extends the lock
+        clock.advance(Duration.ofSeconds(2));
+        Assertions.assertTrue(dao.acquireLock(LOCK, INSTANCE_1, 3));
+        clock.advance(Duration.ofSeconds(2));
+        Assertions.assertFalse(dao.acquireLock(LOCK, INSTANCE_2, 3));
+    }
+
+    @Test
+    public void takeOverExpiredLock() {
+        Assertions.assertTrue(dao.acquireLock(LOCK, INSTANCE_1, 3));
+
+        clock.advance(Duration.ofSeconds(4));
+        Assertions.assertFalse(dao.hasLock(LOCK, INSTANCE_1));
+        Assertions.assertTrue(dao.acquireLock(LOCK, INSTANCE_2, 3));
+        Assertions.assertTrue(dao.hasLock(LOCK, INSTANCE_2));
+    }
+
+    @Test
+    public void releaseLock() {
+        Assertions.assertTrue(dao.acquireLock(LOCK, INSTANCE_1, 3));
+
+        // Other instance can't release the lock
+        dao.releaseLock(LOCK, INSTANCE_2);
+        Assertions.assertTrue(dao.hasLock(LOCK, INSTANCE_1));
+
+        dao.releaseLock(LOCK, INSTANCE_1);
+        Assertions.assertFalse(dao.hasLock(LOCK, INSTANCE_1));
+        Assertions.assertTrue(dao.acquireLock(LOCK, INSTANCE_2, 3));
+    }
+
+    @Test
+    public void acquireLocks() {
+        Assertions.assertTrue(dao.acquireLock("lock2", INSTANCE_2, 3));
+
+        final Map<String, LockLease> leases = dao.acquireLocks(Map.of("lock1", 3, "lock2", 3, "lock3", 10), INSTANCE_1);
+
+        Assertions.assertEquals(2, leases.size());
+        Assertions.assertEquals(clock.instant().plusSeconds(3), leases.get("lock1").lockExpires());
+        Assertions.assertEquals(clock.instant().plusSeconds(10), leases.get("lock3").lockExpires());
+        Assertions.assertNull(leases.get("lock2"));
+    }
+
+    @Test
+    public void countActiveLocks() {
+        dao.acquireLock("job#member#1", INSTANCE_1, 3);
+        dao.acquireLock("job#member#2", INSTANCE_2, 10);
+        dao.acquireLock("other#member#1", INSTANCE_1, 3);
+        Assertions.assertEquals(2, dao.countActiveLocks("job#member#"));
+
+        clock.advance(Duration.ofSeconds(5));
+        Assertions.assertEquals(1, dao.countActiveLocks("job#member#"));
+    }
+
+    @Test
+    public void findFreeLocks() {
+        dao.acquireLock("job#0", INSTANCE_1, 3);
+        dao.acquireLock("job#1", INSTANCE_2, 10);
+        Assertions.assertEquals(Set.of("job#2"), dao.findFreeLocks(List.of("job#0", "job#1", "job#2")));
+
+        clock.advance(Duration.ofSeconds(5));
+        Assertions.assertEquals(Set.of("job#0", "job#2"), dao.findFreeLocks(List.of("job#0", "job#1", "job#2")));
+        Assertions.assertEquals(Set.of(), dao.findFreeLocks(List.of()));
+    }
+
+    @Test
+    public void clearExpiredLocks() {
+        dao.acquireLock("lock1", INSTANCE_1, 1);
+        dao.acquireLock("lock2", INSTANCE_1, 1);
+        dao.acquireLock("lock3", INSTANCE_1, 1);
+        dao.acquireLock("lock4", INSTANCE_1, 100);
+
+        clock.advance(Duration.ofSeconds(10));
+        Assertions.assertEquals(2, dao.clearExpiredLocks(5, 2));
+        Assertions.assertEquals(1, dao.clearExpiredLocks(5, 2));
+        Assertions.assertEquals(0, dao.clearExpiredLocks(5, 2));
+        Assertions.assertTrue(dao.hasLock("lock4", INSTANCE_1));
+    }
+}
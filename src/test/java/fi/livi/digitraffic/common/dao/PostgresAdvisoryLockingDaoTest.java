@@ -0,0 +1,128 @@
+package fi.livi.digitraffic.common.dao;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataAccessException;
+
+public class PostgresAdvisoryLockingDaoTest {
+    private static final String LOCK = "lock";
+    private static final String INSTANCE = "instance";
+    private static final String RELEASE_ALL_LOCKS = "SELECT pg_advisory_unlock_all()";
+
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PreparedStatement acquireStatement;
+
+    @Mock
+    private ResultSet acquireResult;
+
+    @Mock
+    private Statement releaseAllStatement;
+
+    private PostgresAdvisoryLockingDao dao;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        MockitoAnnotations.openMocks(this);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.createStatement()).thenReturn(releaseAllStatement);
+        when(acquireStatement.executeQuery()).thenReturn(acquireResult);
+        when(acquireResult.next()).thenReturn(true, false);
+        when(acquireResult.getString("lock_name")).thenReturn(LOCK);
+        when(acquireResult.getTimestamp("lock_locked")).thenReturn(Timestamp.from(Instant.now()));
+        when(acquireResult.getTimestamp("lock_expires")).thenReturn(Timestamp.from(Instant.now().plusSeconds(3)));
+        dao = new PostgresAdvisoryLockingDao(dataSource);
+    }
+
+    @Test
+    public void heldLockIsRenewedOnSameSessionWithoutLockingAgain() throws SQLException {
+        when(connection.prepareStatement(anyString())).thenReturn(acquireStatement);
+        when(acquireResult.next()).thenReturn(true, false, true, false);
+
+        Assertions.assertTrue(dao.tryAcquireLock(LOCK, INSTANCE, 3).isPresent());
+        Assertions.assertTrue(dao.tryAcquireLock(LOCK, INSTANCE, 3).isPresent());
+
+        // Advisory locks are reentrant, so a held lock is marked held and not taken again
+        final InOrder inOrder = inOrder(acquireStatement);
+        inOrder.verify(acquireStatement).setObject(3, false);
+        inOrder.verify(acquireStatement).setObject(3, true);
+        verify(dataSource).getConnection();
+    }
+
+    @Test
+    public void lockNotHeldIsNotReleased() throws SQLException {
+        dao.releaseLock(LOCK, INSTANCE);
+
+        Assertions.assertFalse(dao.hasLock(LOCK, INSTANCE));
+        verify(dataSource, never()).getConnection();
+    }
+
+    @Test
+    public void failedRenewalReleasesLocksBeforeReturningConnection() throws SQLException {
+        // Renewal fails with a statement timeout, but the session is still alive and holds the lock
+        when(connection.prepareStatement(anyString()))
+            .thenReturn(acquireStatement)
+            .thenThrow(new SQLException("canceling statement due to statement timeout", "57014"));
+
+        Assertions.assertTrue(dao.tryAcquireLock(LOCK, INSTANCE, 3).isPresent());
+        Assertions.assertThrows(DataAccessException.class, () -> dao.acquireLocks(Map.of(LOCK, 3), INSTANCE));
+
+        final InOrder inOrder = inOrder(releaseAllStatement, connection);
+        inOrder.verify(releaseAllStatement).execute(RELEASE_ALL_LOCKS);
+        inOrder.verify(connection).close();
+        verify(connection, never()).abort(any());
+    }
+
+    @Test
+    public void connectionIsEvictedIfReleaseFails() throws SQLException {
+        when(connection.prepareStatement(anyString()))
+            .thenReturn(acquireStatement)
+            .thenThrow(new SQLException("terminating connection", "57P01"));
+        when(releaseAllStatement.execute(RELEASE_ALL_LOCKS)).thenThrow(new SQLException("connection closed", "08003"));
+
+        Assertions.assertTrue(dao.tryAcquireLock(LOCK, INSTANCE, 3).isPresent());
+        Assertions.assertThrows(DataAccessException.class, () -> dao.acquireLocks(Map.of(LOCK, 3), INSTANCE));
+
+        // Aborting ends the session in the db, which releases its locks
+        verify(connection).abort(any());
+    }
+
+    @Test
+    public void destroyReleasesLocksBeforeReturningConnection() throws SQLException {
+        when(connection.prepareStatement(anyString())).thenReturn(acquireStatement);
+
+        Assertions.assertTrue(dao.tryAcquireLock(LOCK, INSTANCE, 3).isPresent());
+        dao.destroy();
+
+        final InOrder inOrder = inOrder(releaseAllStatement, connection);
+        inOrder.verify(releaseAllStatement).execute(RELEASE_ALL_LOCKS);
+        inOrder.verify(connection).close();
+    }
+}
@@ -0,0 +1,145 @@
+package fi.livi.digitraffic.common.dao;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+public class PostgresLockingDaoTest {
+    private static final String INSTANCE = "instance";
+    private static final Instant LOCKED = Instant.parse("2024-01-01T00:00:00Z");
+
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PreparedStatement statement;
+
+    @Mock
+    private ResultSet resultSet;
+
+    private PostgresLockingDao dao;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        MockitoAnnotations.openMocks(this);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        dao = new PostgresLockingDao(new NamedParameterJdbcTemplate(dataSource));
+    }
+
+    @Test
+    public void tryAcquireLockWithOneUpsert() throws SQLException {
+        when(resultSet.next()).thenReturn(true, false);
+        when(resultSet.getTimestamp("lock_locked")).thenReturn(Timestamp.from(LOCKED));
+        when(resultSet.getTimestamp("lock_expires")).thenReturn(Timestamp.from(LOCKED.plusSeconds(3)));
+
+        Assertions.assertEquals(Optional.of(new LockLease(LOCKED, LOCKED.plusSeconds(3))),
+            dao.tryAcquireLock("lock", INSTANCE, 3));
+
+        // The upsert returns the lease, no separate query is needed
+        final ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        verify(statement).executeQuery();
+        Assertions.assertTrue(sql.getValue().contains("ON CONFLICT (lock_name)"), sql.getValue());
+        Assertions.assertTrue(sql.getValue().contains("RETURNING lock_locked, lock_expires"), sql.getValue());
+    }
+
+    @Test
+    public void tryAcquireLockHeldByOther() throws SQLException {
+        when(resultSet.next()).thenReturn(false);
+
+        Assertions.assertEquals(Optional.empty(), dao.tryAcquireLock("lock", INSTANCE, 3));
+        Assertions.assertFalse(dao.acquireLock("lock", INSTANCE, 3));
+        verify(statement, times(2)).executeQuery();
+    }
+
+    @Test
+    public void acquireLocksWithOneStatement() throws SQLException {
+        // lock2 is held by another instance, so no row is returned for it
+        when(resultSet.next()).thenReturn(true, true, false);
+        when(resultSet.getString("lock_name")).thenReturn("lock1", "lock3");
+        when(resultSet.getTimestamp("lock_locked")).thenReturn(Timestamp.from(LOCKED));
+        when(resultSet.getTimestamp("lock_expires"))
+            .thenReturn(Timestamp.from(LOCKED.plusSeconds(3)), Timestamp.from(LOCKED.plusSeconds(10)));
+        final Map<String, Integer> expirationSecondsByLockName = new LinkedHashMap<>();
+        expirationSecondsByLockName.put("lock1", 3);
+        expirationSecondsByLockName.put("lock2", 3);
+        expirationSecondsByLockName.put("lock3", 10);
+
+        final Map<String, LockLease> leases = dao.acquireLocks(expirationSecondsByLockName, INSTANCE);
+
+        Assertions.assertEquals(Map.of(
+            "lock1", new LockLease(LOCKED, LOCKED.plusSeconds(3)),
+            "lock3", new LockLease(LOCKED, LOCKED.plusSeconds(10))), leases);
+        final ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        verify(statement).executeQuery();
+        // All locks and their expirations are bound to the same statement
+        Assertions.assertTrue(sql.getValue().contains("unnest(ARRAY[?, ?, ?]::text[], ARRAY[?, ?, ?]::integer[])"),
+            sql.getValue());
+        verify(statement).setString(2, "lock1");
+        verify(statement).setString(3, "lock2");
+        verify(statement).setString(4, "lock3");
+    }
+
+    @Test
+    public void acquireNoLocksWithoutDb() throws SQLException {
+        Assertions.assertEquals(Map.of(), dao.acquireLocks(Map.of(), INSTANCE));
+
+        verify(dataSource, never()).getConnection();
+    }
+
+    @Test
+    public void findFreeLocksWithOneQuery() throws SQLException {
+        // job#1 is held by some instance
+        when(resultSet.next()).thenReturn(true, false);
+        final ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(metaData.getColumnCount()).thenReturn(1);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(resultSet.getString(1)).thenReturn("job#1");
+
+        Assertions.assertEquals(Set.of("job#0", "job#2"), dao.findFreeLocks(List.of("job#0", "job#1", "job#2")));
+
+        final ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        verify(statement).executeQuery();
+        Assertions.assertTrue(sql.getValue().contains("LT.LOCK_NAME IN (?, ?, ?)"), sql.getValue());
+    }
+
+    @Test
+    public void findNoFreeLocksWithoutDb() throws SQLException {
+        Assertions.assertEquals(Set.of(), dao.findFreeLocks(List.of()));
+
+        verify(dataSource, never()).getConnection();
+    }
+}
@@ -0,0 +1,106 @@
+package fi.livi.digitraffic.common.service.cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.livi.digitraffic.common.cache.ExpiringCache;
+import fi.livi.digitraffic.common.cache.InMemoryCacheInvalidationBus;
+import fi.livi.digitraffic.common.cache.LongExpiringCache;
+
+public class CacheInvalidationServiceTest {
+    private static final String CACHE_NAME = "test";
+
+    @Test
+    public void testInvalidateKeyOnOtherNode() {
+        final var bus = new InMemoryCacheInvalidationBus();
+        final var node1 = new CacheInvalidationService(bus);
+        final var node2 = new CacheInvalidationService(bus);
+        final var cache1 = new ExpiringCache<Integer>(Duration.ofHours(1));
+        final var cache2 = new ExpiringCache<Integer>(Duration.ofHours(1));
+        node1.register(CACHE_NAME, cache1);
+        node2.register(CACHE_NAME, cache2);
+
+        cache1.get("a", () -> new ExpiringCache.CacheResult<>(1));
+        cache2.get("a", () -> new ExpiringCache.CacheResult<>(1));
+        cache2.get("b", () -> new ExpiringCache.CacheResult<>(1));
+
+        node1.invalidate(CACHE_NAME, "a");
+        // local cache is invalidated immediately, other nodes after flush
+        Assertions.assertEquals(2, cache1.get("a", () -> new ExpiringCache.CacheResult<>(2)));
+        Assertions.assertEquals(1, cache2.get("a", () -> new ExpiringCache.CacheResult<>(2)));
+
+        node1.flush();
+        Assertions.assertEquals(2, cache2.get("a", () -> new ExpiringCache.CacheResult<>(2)));
+        Assertions.assertEquals(1, cache2.get("b", () -> new ExpiringCache.CacheResult<>(2)));
+    }
+
+    @Test
+    public void testInvalidateAllOnOtherNode() {
+        final var bus = new InMemoryCacheInvalidationBus();
+        final var node1 = new CacheInvalidationService(bus);
+        final var node2 = new CacheInvalidationService(bus);
+        final var cache2 = new ExpiringCache<Integer>(Duration.ofHours(1));
+        node2.register(CACHE_NAME, cache2);
+
+        cache2.get("a", () -> new ExpiringCache.CacheResult<>(1));
+        cache2.get("b", () -> new ExpiringCache.CacheResult<>(1));
+
+        node1.invalidateAll(CACHE_NAME);
+        node1.flush();
+
+        Assertions.assertEquals(0, cache2.size());
+    }
+
+    @Test
+    public void testInvalidationsAreCoalesced() {
+        final List<String> published = new ArrayList<>();
+        final var bus = new InMemoryCacheInvalidationBus() {
+            @Override
+            public void publish(final List<String> payloads) {
+                published.addAll(payloads);
+                super.publish(payloads);
+            }
+        };
+        final var node = new CacheInvalidationService(bus);
+
+        node.invalidate(CACHE_NAME, "a");
+        node.invalidate(CACHE_NAME, "a");
+        node.invalidate("other", "b");
+        node.invalidateAll(CACHE_NAME);
+        node.invalidate(CACHE_NAME, "c");
+        node.flush();
+        node.flush();
+
+        Assertions.assertEquals(1, published.size());
+        Assertions.assertFalse(published.getFirst().contains("\"a\""));
+        Assertions.assertFalse(published.getFirst().contains("\"c\""));
+        Assertions.assertTrue(published.getFirst().contains("\"b\""));
+    }
+
+    @Test
+    public void testFailedInvalidationDoesNotStopOthers() {
+        final var bus = new InMemoryCacheInvalidationBus();
+        final var node1 = new CacheInvalidationService(bus);
+        final var node2 = new CacheInvalidationService(bus);
+        final var longCache = new LongExpiringCache<Integer>(Duration.ofHours(1));
+        final var cache2 = new ExpiringCache<Integer>(Duration.ofHours(1));
+        node2.register("long", longCache);
+        node2.register(CACHE_NAME, cache2);
+
+        longCache.get(1L, key -> new ExpiringCache.CacheResult<>(1));
+        cache2.get("a", () -> new ExpiringCache.CacheResult<>(1));
+
+        // key that can't be parsed to long is in the same message as the other invalidations
+        node1.invalidate("long", "not-a-number");
+        node1.invalidate("long", "1");
+        node1.invalidate(CACHE_NAME, "a");
+        node1.flush();
+
+        Assertions.assertEquals(2, longCache.get(1L, key -> new ExpiringCache.CacheResult<>(2)));
+        Assertions.assertEquals(2, cache2.get("a", () -> new ExpiringCache.CacheResult<>(2)));
+    }
+}
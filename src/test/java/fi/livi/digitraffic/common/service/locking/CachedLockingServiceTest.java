@@ -0,0 +1,377 @@
+package fi.livi.digitraffic.common.service.locking;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.livi.digitraffic.test.util.MutableClock;
+
+public class CachedLockingServiceTest {
+    private static final String LOCK = "lock";
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-01-01T00:00:00Z"));
+    private final FailingLockingDao dao = new FailingLockingDao(clock);
+    private final LockingService instance1 = new LockingService(dao, null);
+    private final LockingService instance2 = new LockingService(dao, null);
+
+    @Test
+    public void hasLock() {
+        final CachedLockingService service = instance1.createCachedLockingServiceObject(LOCK);
+
+        Assertions.assertFalse(service.isActive());
+        Assertions.assertTrue(service.hasLock());
+        Assertions.assertTrue(service.isActive());
+        Assertions.assertEquals(clock.instant().plusSeconds(CachedLockingService.DEFAULT_EXPIRATION_SECONDS),
+            service.getLockExpires().orElseThrow());
+        Assertions.assertEquals(clock.instant().toEpochMilli(), service.getFencingToken().orElseThrow());
+    }
+
+    @Test
+    public void lockedByOtherInstance() {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+
+        Assertions.assertTrue(service1.hasLock());
+        Assertions.assertFalse(service2.hasLock());
+        Assertions.assertTrue(service2.getLockExpires().isEmpty());
+        Assertions.assertTrue(service2.getFencingToken().isEmpty());
+    }
+
+    @Test
+    public void takeOverAfterDeactivate() {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+        Assertions.assertTrue(service1.hasLock());
+        Assertions.assertFalse(service2.hasLock());
+        final long token1 = service1.getFencingToken().orElseThrow();
+
+        service1.deactivate();
+        Assertions.assertFalse(service1.isLockHeld());
+        clock.advance(Duration.ofMillis(1));
+        instance2.renewLocks();
+
+        Assertions.assertTrue(service2.hasLock());
+        Assertions.assertTrue(service2.getFencingToken().orElseThrow() > token1);
+    }
+
+    @Test
+    public void takeOverAfterExpiry() {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+        Assertions.assertTrue(service1.hasLock());
+        Assertions.assertFalse(service2.hasLock());
+
+        clock.advance(Duration.ofSeconds(CachedLockingService.DEFAULT_EXPIRATION_SECONDS + 1));
+        instance2.renewLocks();
+
+        Assertions.assertTrue(service2.hasLock());
+    }
+
+    @Test
+    public void uniqueLockName() {
+        final CachedLockingService service = instance1.createCachedLockingServiceObject(LOCK);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> instance1.createCachedLockingServiceObject(LOCK));
+
+        // Names are reserved per LockingService
+        instance2.createCachedLockingServiceObject(LOCK);
+
+        service.destroy();
+        instance1.createCachedLockingServiceObject(LOCK);
+    }
+
+    @Test
+    public void lockAsync() throws Exception {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+        Assertions.assertTrue(service1.hasLock());
+
+        final CompletableFuture<Boolean> future = service2.lockAsync(Duration.ofMinutes(1));
+        Assertions.assertFalse(future.isDone());
+
+        service1.deactivate();
+        instance2.renewLocks();
+
+        Assertions.assertTrue(future.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void blockingContinuationDoesNotDelayRenewals() throws Exception {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService other1 = instance1.createCachedLockingServiceObject("other");
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService other2 = instance2.createCachedLockingServiceObject("other");
+        Assertions.assertTrue(service1.hasLock());
+        Assertions.assertTrue(other1.hasLock());
+
+        final CountDownLatch jobReleased = new CountDownLatch(1);
+        final Thread renewalThread = Thread.currentThread();
+        final CompletableFuture<Thread> blockingJob = service2.lockAsync(Duration.ofMinutes(1)).thenApply(locked -> {
+            awaitQuietly(jobReleased);
+            return Thread.currentThread();
+        });
+        final CompletableFuture<Boolean> otherJob = other2.lockAsync(Duration.ofMinutes(1));
+
+        try {
+            service1.deactivate();
+            other1.deactivate();
+
+            // Renewal round returns while the job is still running, and the other waiter gets its lock
+            Assertions.assertTimeoutPreemptively(Duration.ofSeconds(1), instance2::renewLocks);
+            Assertions.assertTrue(otherJob.get(1, TimeUnit.SECONDS));
+            Assertions.assertFalse(blockingJob.isDone());
+        } finally {
+            jobReleased.countDown();
+        }
+        Assertions.assertNotSame(renewalThread, blockingJob.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void lockTimeout() {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+        Assertions.assertTrue(service1.hasLock());
+
+        Assertions.assertFalse(service2.lock(50));
+    }
+
+    @Test
+    public void listeners() {
+        final CachedLockingService service = instance1.createCachedLockingServiceObject(LOCK);
+        final List<String> events = new CopyOnWriteArrayList<>();
+        service.addListener(new LockListener() {
+            @Override
+            public void lockGained(final CachedLockingService service) {
+                events.add("gained");
+            }
+
+            @Override
+            public void lockLost(final CachedLockingService service) {
+                events.add("lost");
+            }
+
+            @Override
+            public void renewalFailed(final CachedLockingService service, final Exception error) {
+                events.add("failed");
+            }
+        });
+
+        Assertions.assertTrue(service.hasLock());
+        Assertions.assertEquals(List.of("gained"), events);
+
+        dao.failing = true;
+        service.acquireLock();
+        Assertions.assertFalse(service.isLockHeld());
+        Assertions.assertEquals(List.of("gained", "failed", "lost"), events);
+
+        dao.failing = false;
+        instance1.renewLocks();
+        Assertions.assertTrue(service.hasLock());
+        Assertions.assertEquals(List.of("gained", "failed", "lost", "gained"), events);
+
+        service.deactivate();
+        Assertions.assertEquals(List.of("gained", "failed", "lost", "gained", "lost"), events);
+    }
+
+    @Test
+    public void failingListenerDoesNotStopOthers() {
+        final CachedLockingService service = instance1.createCachedLockingServiceObject(LOCK);
+        final List<String> events = new CopyOnWriteArrayList<>();
+        service.addListener(new LockListener() {
+            @Override
+            public void lockGained(final CachedLockingService service) {
+                throw new IllegalStateException("Listener failed");
+            }
+        });
+        service.addListener(new LockListener() {
+            @Override
+            public void lockGained(final CachedLockingService service) {
+                events.add("gained");
+            }
+        });
+
+        Assertions.assertTrue(service.hasLock());
+        Assertions.assertEquals(List.of("gained"), events);
+    }
+
+    @Test
+    public void removedListenerIsNotCalled() {
+        final CachedLockingService service = instance1.createCachedLockingServiceObject(LOCK);
+        final List<String> events = new CopyOnWriteArrayList<>();
+        final LockListener listener = new LockListener() {
+            @Override
+            public void lockLost(final CachedLockingService service) {
+                events.add("lost");
+            }
+        };
+        service.addListener(listener);
+        Assertions.assertTrue(service.hasLock());
+
+        service.removeListener(listener);
+        service.deactivate();
+
+        Assertions.assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void expiredLeaseIsLostBeforeGainedAgain() throws InterruptedException {
+        final CachedLockingService service = new CachedLockingService(instance1, LOCK, 1);
+        final List<String> events = new CopyOnWriteArrayList<>();
+        service.addListener(new LockListener() {
+            @Override
+            public void lockGained(final CachedLockingService service) {
+                events.add("gained");
+            }
+
+            @Override
+            public void lockLost(final CachedLockingService service) {
+                events.add("lost");
+            }
+        });
+        Assertions.assertTrue(service.hasLock());
+
+        // Lease expires locally without renewal, and the next renewal acquires the lock again
+        Thread.sleep(1100);
+        service.acquireLock();
+
+        Assertions.assertTrue(service.isLockHeld());
+        Assertions.assertEquals(List.of("gained", "lost", "gained"), events);
+    }
+
+    @Test
+    public void localDeadlineWithoutRenewal() throws InterruptedException {
+        final CachedLockingService service = new CachedLockingService(instance1, LOCK, 1);
+        Assertions.assertTrue(service.hasLock());
+
+        // Db time stands still, but the lease is only trusted for its duration of local time
+        Thread.sleep(1100);
+
+        Assertions.assertTrue(dao.hasLock(LOCK, instance1.getInstanceId()));
+        Assertions.assertFalse(service.isLockHeld());
+        Assertions.assertTrue(service.getLockExpires().isEmpty());
+        Assertions.assertTrue(service.getFencingToken().isEmpty());
+    }
+
+    @Test
+    public void fencingToken() {
+        final CachedLockingService service = instance1.createCachedLockingServiceObject(LOCK);
+        Assertions.assertTrue(service.hasLock());
+        final long token = service.getFencingToken().orElseThrow();
+
+        // Renewal keeps the token
+        clock.advance(Duration.ofSeconds(1));
+        service.acquireLock();
+        Assertions.assertEquals(token, service.getFencingToken().orElseThrow());
+
+        // New acquisition gets the db time of the acquisition
+        service.deactivate();
+        service.activate();
+        final long reacquiredToken = service.getFencingToken().orElseThrow();
+        Assertions.assertEquals(clock.instant().toEpochMilli(), reacquiredToken);
+
+        // Token increases even if the db time has not advanced
+        service.deactivate();
+        service.activate();
+        Assertions.assertEquals(reacquiredToken + 1, service.getFencingToken().orElseThrow());
+    }
+
+    @Test
+    public void lockAsyncCompletesAllWaiters() throws Exception {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+        Assertions.assertTrue(service1.hasLock());
+
+        final CompletableFuture<Boolean> first = service2.lockAsync(Duration.ofMinutes(1));
+        final CompletableFuture<Boolean> second = service2.lockAsync(Duration.ofMinutes(1));
+        final CompletableFuture<Boolean> timedOut = service2.lockAsync(Duration.ofMillis(10));
+        Assertions.assertFalse(timedOut.join());
+        Assertions.assertFalse(first.isDone());
+
+        service1.deactivate();
+        instance2.renewLocks();
+
+        Assertions.assertTrue(first.get(1, TimeUnit.SECONDS));
+        Assertions.assertTrue(second.get(1, TimeUnit.SECONDS));
+
+        // Waiting starts again after the lock is lost
+        dao.failing = true;
+        service2.acquireLock();
+        Assertions.assertFalse(service2.lockAsync(Duration.ofMinutes(1)).isDone());
+    }
+
+    @Test
+    public void lockWaitsUntilAcquired() throws Exception {
+        final CachedLockingService service1 = instance1.createCachedLockingServiceObject(LOCK);
+        final CachedLockingService service2 = instance2.createCachedLockingServiceObject(LOCK);
+        Assertions.assertTrue(service1.hasLock());
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            final Future<Boolean> locked = executor.submit(() -> service2.lock(5000));
+            Thread.sleep(50);
+            Assertions.assertFalse(locked.isDone());
+
+            service1.deactivate();
+            instance2.renewLocks();
+
+            Assertions.assertTrue(locked.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void renewalInterval() {
+        final long before = System.nanoTime();
+        final CachedLockingService service = new CachedLockingService(instance1, LOCK, 60);
+        // Lock that is not held is always due
+        Assertions.assertTrue(service.isRenewalDue(before));
+
+        Assertions.assertTrue(service.hasLock());
+        final long after = System.nanoTime();
+
+        // Renewed after a third of the expiration, minus at most 10 % jitter
+        Assertions.assertFalse(service.isRenewalDue(after));
+        Assertions.assertFalse(service.isRenewalDue(before + TimeUnit.SECONDS.toNanos(18) - 1));
+        Assertions.assertTrue(service.isRenewalDue(after + TimeUnit.SECONDS.toNanos(20)));
+
+        // Held lock is left out of the renewal round until it is due
+        instance1.renewLocks();
+        Assertions.assertTrue(dao.acquireLocksRequests.isEmpty());
+    }
+
+    @Test
+    public void renewalJitter() {
+        final long before = System.nanoTime();
+        final List<CachedLockingService> services = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final CachedLockingService service = new CachedLockingService(instance1, LOCK + i, 60);
+            Assertions.assertTrue(service.hasLock());
+            services.add(service);
+        }
+
+        // Renewals are spread between 18 and 20 seconds, so they don't all fall on the same round
+        final long dueCount = services.stream()
+            .filter(service -> service.isRenewalDue(before + TimeUnit.SECONDS.toNanos(19)))
+            .count();
+        Assertions.assertTrue(dueCount > 0 && dueCount < services.size(), "dueCount=" + dueCount);
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fi.livi.digitraffic.common.service.locking;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import fi.livi.digitraffic.common.dao.InMemoryLockingDao;
+import fi.livi.digitraffic.common.dao.LockLease;
+import fi.livi.digitraffic.test.util.MutableClock;
+
+/**
+ * In-memory dao that fails like a lost db connection when asked to, and records the batched acquisitions and
+ * cleanups.
+ */
+class FailingLockingDao extends InMemoryLockingDao {
+    volatile boolean failing = false;
+    /** Lock names of every acquireLocks call */
+    final List<Set<String>> acquireLocksRequests = new CopyOnWriteArrayList<>();
+    /** Deleted count of every batched clearExpiredLocks call */
+    final List<Integer> clearExpiredLocksBatches = new CopyOnWriteArrayList<>();
+
+    FailingLockingDao(final MutableClock clock) {
+        super(clock);
+    }
+
+    @Override
+    public Optional<LockLease> tryAcquireLock(final String lockName, final String callerInstanceId,
+                                              final int expirationSeconds) {
+        failIfFailing();
+        return super.tryAcquireLock(lockName, callerInstanceId, expirationSeconds);
+    }
+
+    @Override
+    public Map<String, LockLease> acquireLocks(final Map<String, Integer> expirationSecondsByLockName,
+                                               final String callerInstanceId) {
+        acquireLocksRequests.add(Set.copyOf(expirationSecondsByLockName.keySet()));
+        failIfFailing();
+        return super.acquireLocks(expirationSecondsByLockName, callerInstanceId);
+    }
+
+    @Override
+    public int clearExpiredLocks(final int secondsSinceExpired, final int batchSize) {
+        failIfFailing();
+        final int deletedCount = super.clearExpiredLocks(secondsSinceExpired, batchSize);
+        clearExpiredLocksBatches.add(deletedCount);
+        return deletedCount;
+    }
+
+    private void failIfFailing() {
+        if (failing) {
+            throw new IllegalStateException("Connection failed");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package fi.livi.digitraffic.common.service.locking;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import fi.livi.digitraffic.test.util.MutableClock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class LockMetricsTest {
+    private static final String LOCK = "lock";
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void metrics() {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final ObjectProvider<MeterRegistry> meterRegistry = mock(ObjectProvider.class);
+        when(meterRegistry.getIfAvailable()).thenReturn(registry);
+        final FailingLockingDao dao = new FailingLockingDao(new MutableClock(Instant.parse("2024-01-01T00:00:00Z")));
+        final CachedLockingService service = new LockingService(dao, null, meterRegistry).createCachedLockingServiceObject(LOCK);
+
+        Assertions.assertTrue(service.hasLock());
+        Assertions.assertEquals(1, registry.get(LockMetrics.LOCK_HELD).tag(LockMetrics.TAG_LOCK, LOCK).gauge().value());
+        Assertions.assertEquals(1, registry.get(LockMetrics.LOCK_RENEWAL).tag(LockMetrics.TAG_LOCK, LOCK).timer().count());
+        Assertions.assertEquals(1, registry.get(LockMetrics.LOCK_FLAPS).tag(LockMetrics.TAG_LOCK, LOCK).counter().count());
+
+        dao.failing = true;
+        service.acquireLock();
+        Assertions.assertEquals(0, registry.get(LockMetrics.LOCK_HELD).tag(LockMetrics.TAG_LOCK, LOCK).gauge().value());
+        Assertions.assertEquals(1, registry.get(LockMetrics.LOCK_RENEWAL_FAILURES).tag(LockMetrics.TAG_LOCK, LOCK).counter().count());
+        Assertions.assertEquals(2, registry.get(LockMetrics.LOCK_FLAPS).tag(LockMetrics.TAG_LOCK, LOCK).counter().count());
+
+        // Meters are removed with the service
+        service.destroy();
+        Assertions.assertNull(registry.find(LockMetrics.LOCK_HELD).tag(LockMetrics.TAG_LOCK, LOCK).gauge());
+    }
+}
@@ -0,0 +1,145 @@
+package fi.livi.digitraffic.common.service.locking;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.livi.digitraffic.common.dao.LockLease;
+import fi.livi.digitraffic.test.util.MutableClock;
+
+public class LockingServiceTest {
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-01-01T00:00:00Z"));
+    private final FailingLockingDao dao = new FailingLockingDao(clock);
+    private final LockingService instance1 = new LockingService(dao, null);
+    private final LockingService instance2 = new LockingService(dao, null);
+
+    @Test
+    public void renewLocksWithOneRoundTrip() {
+        for (final String lockName : List.of("lock1", "lock2", "lock3")) {
+            Assertions.assertTrue(instance1.createCachedLockingServiceObject(lockName).hasLock());
+            Assertions.assertFalse(instance2.createCachedLockingServiceObject(lockName).hasLock());
+        }
+        // Inactive service is not renewed
+        instance2.createCachedLockingServiceObject("inactive");
+        dao.acquireLocksRequests.clear();
+
+        instance2.renewLocks();
+
+        Assertions.assertEquals(List.of(Set.of("lock1", "lock2", "lock3")), dao.acquireLocksRequests);
+    }
+
+    @Test
+    public void renewLocksWithoutActiveServices() {
+        instance1.createCachedLockingServiceObject("lock1");
+
+        instance1.renewLocks();
+
+        Assertions.assertTrue(dao.acquireLocksRequests.isEmpty());
+    }
+
+    @Test
+    public void renewLocksFailure() throws InterruptedException {
+        final CachedLockingService service1 = new CachedLockingService(instance1, "lock1", 1);
+        final CachedLockingService service2 = new CachedLockingService(instance1, "lock2", 1);
+        final List<String> failures = new CopyOnWriteArrayList<>();
+        for (final CachedLockingService service : List.of(service1, service2)) {
+            service.addListener(new LockListener() {
+                @Override
+                public void renewalFailed(final CachedLockingService failed, final Exception error) {
+                    failures.add(failed.getLockName());
+                }
+            });
+            Assertions.assertTrue(service.hasLock());
+        }
+
+        // 1-second locks are due to renewal after a third of a second
+        Thread.sleep(400);
+        dao.failing = true;
+        instance1.renewLocks();
+
+        Assertions.assertEquals(1, dao.acquireLocksRequests.size());
+        Assertions.assertEquals(Set.of("lock1", "lock2"), Set.copyOf(failures));
+        Assertions.assertFalse(service1.isLockHeld());
+        Assertions.assertFalse(service2.isLockHeld());
+
+        // Next round acquires the locks again
+        dao.failing = false;
+        instance1.renewLocks();
+
+        Assertions.assertTrue(service1.isLockHeld());
+        Assertions.assertTrue(service2.isLockHeld());
+    }
+
+    @Test
+    public void tryAcquireLockReturnsLease() {
+        final LockLease lease = instance1.tryAcquireLock("lock1", 3).orElseThrow();
+
+        Assertions.assertEquals(clock.instant(), lease.lockLocked());
+        Assertions.assertEquals(clock.instant().plusSeconds(3), lease.lockExpires());
+        Assertions.assertEquals(Duration.ofSeconds(3), lease.getDuration());
+        Assertions.assertTrue(instance2.tryAcquireLock("lock1", 3).isEmpty());
+        Assertions.assertFalse(instance2.acquireLock("lock1", 3));
+
+        // Renewal by the holder extends the lease
+        clock.advance(Duration.ofSeconds(2));
+        final LockLease renewed = instance1.tryAcquireLock("lock1", 3).orElseThrow();
+        Assertions.assertEquals(clock.instant().plusSeconds(3), renewed.lockExpires());
+    }
+
+    @Test
+    public void lockNameReservedUntilDestroyed() {
+        final CachedLockingService first = instance1.createCachedLockingServiceObject("lock1");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> instance1.createCachedLockingServiceObject("lock1"));
+
+        first.destroy();
+        instance1.createCachedLockingServiceObject("lock1");
+
+        // Destroying the old service again doesn't release the name of the new one
+        first.destroy();
+        Assertions.assertThrows(IllegalArgumentException.class, () -> instance1.createCachedLockingServiceObject("lock1"));
+    }
+
+    @Test
+    public void shardedLockNameReservedUntilDestroyed() {
+        final ShardedLockingService first = new ShardedLockingService(instance1, "job", 4, 3);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ShardedLockingService(instance1, "job", 4, 3));
+
+        // Names are reserved per LockingService
+        new ShardedLockingService(instance2, "job", 4, 3);
+
+        first.destroy();
+        new ShardedLockingService(instance1, "job", 4, 3);
+    }
+
+    @Test
+    public void clearExpiredLocksInBatches() {
+        for (int i = 0; i < 2500; i++) {
+            Assertions.assertTrue(dao.acquireLock("lock" + i, "other", 1));
+        }
+        clock.advance(Duration.ofSeconds(10));
+
+        instance1.clearExpiredLocks(5);
+
+        Assertions.assertEquals(List.of(1000, 1000, 500), dao.clearExpiredLocksBatches);
+        Assertions.assertEquals(0, dao.clearExpiredLocks(5, 10));
+        // Cleanup lock is released after the cleanup
+        Assertions.assertTrue(dao.acquireLock("LockingService.clearExpiredLocks", "other", 1));
+    }
+
+    @Test
+    public void clearExpiredLocksSkippedWhileOtherInstanceCleans() {
+        Assertions.assertTrue(dao.acquireLock("lock1", "other", 1));
+        clock.advance(Duration.ofSeconds(10));
+        Assertions.assertTrue(dao.acquireLock("LockingService.clearExpiredLocks", instance2.getInstanceId(), 300));
+
+        instance1.clearExpiredLocks(5);
+
+        Assertions.assertTrue(dao.clearExpiredLocksBatches.isEmpty());
+        Assertions.assertEquals(1, dao.clearExpiredLocks(5, 10));
+    }
+}
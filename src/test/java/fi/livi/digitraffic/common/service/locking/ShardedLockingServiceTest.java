@@ -0,0 +1,168 @@
+package fi.livi.digitraffic.common.service.locking;
+
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.livi.digitraffic.common.dao.PostgresAdvisoryLockingDao;
+import fi.livi.digitraffic.test.util.MutableClock;
+
+public class ShardedLockingServiceTest {
+    private static final String LOCK_NAME = "job";
+    private static final int SHARD_COUNT = 10;
+    private static final int ROUNDS = 10;
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-01-01T00:00:00Z"));
+    private final FailingLockingDao dao = new FailingLockingDao(clock);
+
+    @Test
+    public void singleNodeOwnsAllShards() {
+        final ShardedLockingService node = createNode();
+
+        Assertions.assertEquals(allShards(), node.getOwnedShards());
+    }
+
+    @Test
+    public void joiningNodeGetsItsShare() {
+        final ShardedLockingService node1 = createNode();
+        node1.activate();
+        final ShardedLockingService node2 = createNode();
+        node2.activate();
+
+        rebalance(node1, node2);
+
+        assertShares(List.of(5, 5), node1, node2);
+    }
+
+    @Test
+    public void leavingNodesShardsAreTaken() {
+        final ShardedLockingService node1 = createNode();
+        final ShardedLockingService node2 = createNode();
+        node1.activate();
+        node2.activate();
+        rebalance(node1, node2);
+
+        node2.deactivate();
+        rebalance(node1);
+
+        Assertions.assertEquals(allShards(), node1.getOwnedShards());
+    }
+
+    @Test
+    public void expiredNodesShardsAreTaken() {
+        final ShardedLockingService node1 = createNode();
+        final ShardedLockingService node2 = createNode();
+        node1.activate();
+        node2.activate();
+        rebalance(node1, node2);
+
+        // node2 stops renewing and its locks expire
+        clock.advance(Duration.ofSeconds(61));
+        rebalance(node1);
+
+        Assertions.assertEquals(allShards(), node1.getOwnedShards());
+    }
+
+    @Test
+    public void unevenSharesConverge() {
+        final ShardedLockingService node1 = createNode();
+        final ShardedLockingService node2 = createNode();
+        final ShardedLockingService node3 = createNode();
+        node1.activate();
+        node2.activate();
+        rebalance(node1, node2);
+        node3.activate();
+
+        rebalance(node1, node2, node3);
+
+        assertShares(List.of(3, 3, 4), node1, node2, node3);
+    }
+
+    @Test
+    public void shardsOfOthersAreNotTried() {
+        final ShardedLockingService node1 = createNode();
+        final ShardedLockingService node2 = createNode();
+        final ShardedLockingService node3 = createNode();
+        List.of(node1, node2, node3).forEach(ShardedLockingService::activate);
+        rebalance(node1, node2, node3);
+        dao.acquireLocksRequests.clear();
+
+        node1.rebalance();
+        node2.rebalance();
+        node3.rebalance();
+
+        // Every shard has an owner, so each node only renews its own locks
+        Assertions.assertEquals(3, dao.acquireLocksRequests.size());
+        final Set<String> requested = new HashSet<>();
+        dao.acquireLocksRequests.forEach(request -> Assertions.assertTrue(Collections.disjoint(requested, request),
+                "Locks requested by more than one node: " + request));
+        dao.acquireLocksRequests.forEach(requested::addAll);
+        Assertions.assertEquals(SHARD_COUNT + 3 + 1, requested.size(), requested.toString());
+    }
+
+    @Test
+    public void onlyFreeShardIsFoundInOneRound() {
+        final int shardCount = 1000;
+        IntStream.range(0, shardCount)
+            .filter(shard -> shard != 617)
+            .forEach(shard -> dao.acquireLock(LOCK_NAME + "#" + shard, "other", 60));
+        final LockingService lockingService = new LockingService(dao, null);
+
+        final ShardedLockingService node = new ShardedLockingService(lockingService, LOCK_NAME, shardCount, 60);
+        node.activate();
+
+        Assertions.assertEquals(Set.of(617), node.getOwnedShards());
+        Assertions.assertEquals(List.of(Set.of(LOCK_NAME + "#617", LOCK_NAME + "#member#" + lockingService.getInstanceId())),
+                dao.acquireLocksRequests);
+    }
+
+    @Test
+    public void lockNameWithSeparatorIsRejected() {
+        final LockingService lockingService = new LockingService(dao, null);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new ShardedLockingService(lockingService, "job#member", SHARD_COUNT, 60));
+    }
+
+    @Test
+    public void backendWithoutCountIsRejected() {
+        final LockingService lockingService = new LockingService(new PostgresAdvisoryLockingDao(mock(DataSource.class)), null);
+
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> lockingService.createShardedLockingService(LOCK_NAME, SHARD_COUNT));
+    }
+
+    private ShardedLockingService createNode() {
+        return new ShardedLockingService(new LockingService(dao, null), LOCK_NAME, SHARD_COUNT, 60);
+    }
+
+    private static void rebalance(final ShardedLockingService... nodes) {
+        for (int i = 0; i < ROUNDS; i++) {
+            for (final ShardedLockingService node : nodes) {
+                node.rebalance();
+            }
+        }
+    }
+
+    private static void assertShares(final List<Integer> expectedSizes, final ShardedLockingService... nodes) {
+        final List<Set<Integer>> owned = IntStream.range(0, nodes.length).mapToObj(i -> nodes[i].getOwnedShards()).toList();
+        Assertions.assertEquals(expectedSizes, owned.stream().map(Set::size).sorted().toList(), owned.toString());
+        Assertions.assertEquals(allShards(), owned.stream().flatMap(Set::stream).collect(Collectors.toSet()), owned.toString());
+    }
+
+    private static Set<Integer> allShards() {
+        return IntStream.range(0, SHARD_COUNT).boxed().collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,37 @@
+package fi.livi.digitraffic.test.util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Clock that stays still until it is advanced.
+ */
+public class MutableClock extends Clock {
+    private volatile Instant instant;
+
+    public MutableClock(final Instant instant) {
+        this.instant = instant;
+    }
+
+    public void advance(final Duration duration) {
+        instant = instant.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(final ZoneId zone) {
+        return this;
+    }
+
+    @Override
+    public Instant instant() {
+        return instant;
+    }
+}